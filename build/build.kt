@@ -22,6 +22,7 @@ val ResourcePacker by project {
 
 	val gdxVersion = "1.9.10"
 	val lwjglVersion = "3.2.3"
+	val jmhVersion = "1.23"
 
 	libraryDependencies addAll { setOf(
 			dependency("com.badlogicgames.gdx", "gdx", gdxVersion),
@@ -35,7 +36,11 @@ val ResourcePacker by project {
 			dependency("org.lwjgl", "lwjgl-stb", lwjglVersion),
 			dependency("org.lwjgl", "lwjgl-stb", lwjglVersion, classifier="natives-macos"),
 			dependency("org.lwjgl", "lwjgl-stb", lwjglVersion, classifier="natives-linux"),
-			dependency("org.lwjgl", "lwjgl-stb", lwjglVersion, classifier="natives-windows")
+			dependency("org.lwjgl", "lwjgl-stb", lwjglVersion, classifier="natives-windows"),
+			// Benchmarks are runnable from test sources, like the tests below, test scope keeps JMH out of the published artifact
+			dependency("org.openjdk.jmh", "jmh-core", jmhVersion, scope = ScopeTest),
+			// Generates the benchmark harness from test sources, javac finds it on the classpath
+			dependency("org.openjdk.jmh", "jmh-generator-annprocess", jmhVersion, scope = ScopeTest)
 	) }
 
 	runOptions add { "-agentlib:jdwp=transport=dt_socket,server=y,suspend=n,address=5005" }
@@ -64,3 +69,30 @@ val usingResourcePackTest by configuration("Test using results of resourcePackTe
 val freeTypePackerTest by configuration("Test of FreeType packer") {
 	mainClass set { "FreeTypePackerTest" }
 }
+
+// ./wemi testing:watchResourcesTest:run
+val watchResourcesTest by configuration("Test of watch mode") {
+	mainClass set { "WatchResourcesTestKt" }
+}
+
+// ./wemi testing:taskSchedulerTest:run
+val taskSchedulerTest by configuration("Test of scheduling of local tasks") {
+	mainClass set { "TaskSchedulerTestKt" }
+}
+
+// ./wemi testing:maxRectsPackerTest:run
+val maxRectsPackerTest by configuration("Test of MaxRects packing, indexed and parallel") {
+	mainClass set { "com.darkyen.resourcepacker.util.texturepacker.MaxRectsPackerTest" }
+}
+
+// ./wemi testing:benchmark:run
+val benchmark by configuration("JMH benchmarks of packing hot paths") {
+	mainClass set { "org.openjdk.jmh.Main" }
+}
+
+// ./wemi testing:appCds:run
+val appCds by configuration("Packs test resources and archives loaded classes for class data sharing (JDK 13+)") {
+	mainClass set { "ResourcePackerTestKt" }
+	// Use with -XX:SharedArchiveFile=build/cache/resource-packer.jsa
+	runOptions add { "-XX:ArchiveClassesAtExit=build/cache/resource-packer.jsa" }
+}
@@ -0,0 +1,220 @@
+package com.darkyen.resourcepacker
+
+import com.esotericsoftware.minlog.Log
+import java.lang.ref.WeakReference
+import java.util.*
+
+/**
+ * Single flag, as found in names of resources. Flags are interned, so each flag is parsed only once
+ * by each [FlagPattern], no matter how many resources have it. Obtain through [Flag.of].
+ * Flags which nobody uses anymore are forgotten, so long running processes don't keep every flag they have seen.
+ *
+ * @author Darkyen
+ */
+class Flag private constructor(val text: String) {
+
+    /** Bit of this flag in [FlagList] keyword masks, 0 if it has none yet, see [keywordBit] */
+    @Volatile
+    internal var keywordBit = 0L
+        private set
+
+    /** Results of [FlagPattern]s, by [FlagPattern.index]. [NoMatch] when the pattern does not match, null when not known yet. */
+    @Volatile
+    private var parsed = arrayOfNulls<Any>(0)
+
+    /**
+     * Bits are allocated only to flags which are queried through [FlagList.has], that is, to keywords of tasks,
+     * not to every flag of resources.
+     * @return bit of this flag in [FlagList] keyword masks, allocated on first call, or 0 if all bits are taken
+     */
+    internal fun allocateKeywordBit(): Long {
+        val bit = keywordBit
+        if (bit != 0L || keywordBits >= 64) {
+            return bit
+        }
+        synchronized(Flag) {
+            if (keywordBit == 0L && keywordBits < 64) {
+                keywordBit = 1L shl keywordBits++
+                // Flag with a bit must not be forgotten, otherwise it would get another one
+                keywords.add(this)
+                // Masks computed before this bit existed must be recomputed
+                keywordGeneration++
+            }
+            return keywordBit
+        }
+    }
+
+    /** @return what [pattern] parses from this flag, or null if it does not match */
+    fun <T : Any> parse(pattern: FlagPattern<T>): T? {
+        var parsed = parsed
+        var result = if (pattern.index < parsed.size) parsed[pattern.index] else null
+        if (result == null) {
+            // Parsing is deterministic, so it does not matter if it happens multiple times concurrently
+            result = pattern.parse(text) ?: NoMatch
+            synchronized(this) {
+                parsed = this.parsed
+                if (pattern.index >= parsed.size) {
+                    parsed = parsed.copyOf(pattern.index + 1)
+                }
+                parsed[pattern.index] = result
+                this.parsed = parsed
+            }
+        }
+        @Suppress("UNCHECKED_CAST")
+        return if (result === NoMatch) null else result as T
+    }
+
+    override fun toString(): String = text
+
+    companion object {
+        /** Keys are texts of the flags, so entries are removed when their flag is no longer used. Guarded by itself. */
+        private val interned = WeakHashMap<String, WeakReference<Flag>>()
+        private val NoMatch = Any()
+
+        private var keywordBits = 0
+        private val keywords = ArrayList<Flag>()
+        /** Incremented whenever a new keyword bit is allocated. */
+        @Volatile
+        internal var keywordGeneration = 0
+            private set
+
+        /** @return the flag with given [text] */
+        fun of(text: String): Flag {
+            synchronized(interned) {
+                interned[text]?.get()?.let { return it }
+                val flag = Flag(text)
+                interned[flag.text] = WeakReference(flag)
+                return flag
+            }
+        }
+    }
+}
+
+/**
+ * Part of the flag grammar, which parses matching flags into [T].
+ * Patterns should be created once, typically as properties of the task which uses them.
+ *
+ * @param parse returns parsed value of the flag, or null if it does not match
+ */
+class FlagPattern<T : Any>(internal val parse: (String) -> T?) {
+
+    /** Pattern which matches flags matching whole [regex], parsed from its match by [parse]. */
+    constructor(regex: Regex, parse: (MatchResult) -> T?) : this({ text -> regex.matchEntire(text)?.let(parse) })
+
+    internal val index: Int = synchronized(FlagPattern) { patterns++ }
+
+    private companion object {
+        var patterns = 0
+    }
+}
+
+/**
+ * Flags of [owner], which report their changes to it. All changes go through [add], [set] and [removeAt].
+ * Flags can be queried through interned [Flag]s and [FlagPattern]s, which is faster than working with their text.
+ * Like the rest of the resource, it must not be changed while other threads read it.
+ */
+class FlagList internal constructor(private val owner: Resource, flags: Collection<String>) : AbstractMutableList<String>() {
+
+    @PublishedApi
+    internal val flags = ArrayList<Flag>(flags.size + 2).apply {
+        for (flag in flags) {
+            add(Flag.of(flag))
+        }
+    }
+
+    private var keywordMask = 0L
+    private var keywordMaskGeneration = -1
+
+    override val size: Int
+        get() = flags.size
+
+    override fun get(index: Int): String = flags[index].text
+
+    override fun add(index: Int, element: String) {
+        synchronized(this) {
+            flags.add(index, Flag.of(element))
+            keywordMaskGeneration = -1
+        }
+        owner.flagChanged(element, 1)
+    }
+
+    override fun set(index: Int, element: String): String {
+        val old = synchronized(this) {
+            keywordMaskGeneration = -1
+            flags.set(index, Flag.of(element))
+        }
+        owner.flagChanged(old.text, -1)
+        owner.flagChanged(element, 1)
+        return old.text
+    }
+
+    override fun removeAt(index: Int): String {
+        val old = synchronized(this) {
+            keywordMaskGeneration = -1
+            flags.removeAt(index)
+        }
+        owner.flagChanged(old.text, -1)
+        return old.text
+    }
+
+    /** @return mask of keyword bits of all flags */
+    @Synchronized
+    private fun keywordMask(): Long {
+        val generation = Flag.keywordGeneration
+        if (keywordMaskGeneration != generation) {
+            var mask = 0L
+            for (flag in flags) {
+                mask = mask or flag.keywordBit
+            }
+            keywordMask = mask
+            keywordMaskGeneration = generation
+        }
+        return keywordMask
+    }
+
+    /** @return whether this contains the [flag] */
+    fun has(flag: Flag): Boolean {
+        val bit = flag.allocateKeywordBit()
+        if (bit != 0L) {
+            return keywordMask() and bit != 0L
+        }
+        for (i in flags.indices) {
+            if (flags[i] === flag) return true
+        }
+        return false
+    }
+
+    /** @return whether this contains any of the [flags] */
+    fun hasAny(flags: Collection<Flag>): Boolean {
+        for (flag in flags) {
+            if (has(flag)) return true
+        }
+        return false
+    }
+
+    /**
+     * @return what [pattern] parses from the first flag which it matches, null if none matches.
+     * Warns if more flags match, unless [warnIfMore] is false.
+     */
+    fun <T : Any> matchFirst(pattern: FlagPattern<T>, warnIfMore: Boolean = true): T? {
+        var result: T? = null
+        for (i in flags.indices) {
+            val flag = flags[i]
+            val parsed = flag.parse(pattern) ?: continue
+            if (result == null) {
+                result = parsed
+                if (!warnIfMore) break
+            } else {
+                Log.warn("FlagList", "Multiple matches for a pattern in $owner, $flag is ignored")
+            }
+        }
+        return result
+    }
+
+    /** Calls [action] with what [pattern] parses from each flag which it matches. */
+    inline fun <T : Any> matchAll(pattern: FlagPattern<T>, action: (T) -> Unit) {
+        for (i in flags.indices) {
+            action(flags[i].parse(pattern) ?: continue)
+        }
+    }
+}
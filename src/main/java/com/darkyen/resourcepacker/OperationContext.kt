@@ -0,0 +1,103 @@
+package com.darkyen.resourcepacker
+
+import com.darkyen.resourcepacker.image.ImageMemory
+import com.darkyen.resourcepacker.image.ImageMemoryBudget
+import com.esotericsoftware.minlog.Log
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.ForkJoinWorkerThread
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * State of a single packing operation, which tasks need, but which is not passed to them:
+ * values of [SettingKey]s, the [OperationJanitor], the [TreeWorklist] and the [ImageMemory].
+ *
+ * Context is bound to threads which work on the operation, so multiple operations may run in the same JVM at the same time.
+ * Threads created by the operation must be created through [newForkJoinPool] or [newThreadFactory], to see it.
+ *
+ * @author Darkyen
+ */
+internal class OperationContext(val settings: List<Setting<*>>) {
+
+    private val values = HashMap<SettingKey<*>, Any?>()
+
+    init {
+        for (setting in settings) {
+            values[setting.key] = setting.value
+        }
+    }
+
+    lateinit var janitor: OperationJanitor
+
+    /** Memory for decoded images of this operation, see [ImageMemoryBudget] */
+    val imageMemory: ImageMemory by lazy {
+        ImageMemory(valueOf(ImageMemoryBudget)) { janitor.createTempDirectory("ImageMemory") }
+    }
+
+    /** Receives log messages of the operation instead of the global logger, when set and [DaemonLogger] is installed */
+    var logger: Log.Logger? = null
+
+    /** Worklist of the repeating task which is running, if any */
+    @Volatile
+    var worklist: TreeWorklist? = null
+
+    /** Pool of the tasks which are running, with [ParallelTasks] */
+    @Volatile
+    var pool: ForkJoinPool? = null
+
+    /** @return value of [key] in this operation */
+    fun <T> valueOf(key: SettingKey<T>): T {
+        if (!values.containsKey(key)) {
+            return key.defaultValue
+        }
+        @Suppress("UNCHECKED_CAST")
+        return values[key] as T
+    }
+
+    /** Runs [action] with this context bound to the current thread. */
+    inline fun <T> bind(action: () -> T): T {
+        val previous = current.get()
+        current.set(this)
+        try {
+            return action()
+        } finally {
+            current.set(previous)
+        }
+    }
+
+    /** @return new pool, whose threads are bound to this context */
+    fun newForkJoinPool(): ForkJoinPool {
+        val context = this
+        return ForkJoinPool(Runtime.getRuntime().availableProcessors(), { pool ->
+            object : ForkJoinWorkerThread(pool) {
+                override fun onStart() {
+                    super.onStart()
+                    current.set(context)
+                }
+            }
+        }, null, false)
+    }
+
+    /** @return factory of threads bound to this context */
+    fun newThreadFactory(name: String): ThreadFactory {
+        val context = this
+        val counter = AtomicInteger()
+        return ThreadFactory { runnable ->
+            val thread = Thread({
+                current.set(context)
+                runnable.run()
+            }, "$name-${counter.incrementAndGet()}")
+            thread.isDaemon = true
+            thread
+        }
+    }
+
+    companion object {
+        val current = ThreadLocal<OperationContext>()
+
+        /** @return context bound to the current thread, fails if there is none */
+        fun get(): OperationContext {
+            return current.get() ?: throw IllegalStateException("Not running in a packing operation")
+        }
+    }
+}
@@ -6,6 +6,8 @@ import java.nio.file.Files
 
 /**
  * Class that keeps all working files in check, creates new ones and throws old ones away.
+ * Names of new files are derived from what they are created for, not random,
+ * so that the same operation creates the same files each time.
  *
  * @author Darkyen
  */
@@ -13,13 +15,33 @@ class OperationJanitor(private val workingRootProvider: WorkingRootProvider) {
 
     val workingRoot = workingRootProvider.getTemporaryRoot(this)
 
+    /** Cache of task results, present only when packing incrementally. */
+    var taskCache: TaskCache? = null
+        internal set
+
+    /** Prepares [taskCache], if possible. */
+    internal fun enableTaskCache(settings: List<Setting<*>>) {
+        val cacheRoot = workingRootProvider.getCacheRoot(this)
+        if (cacheRoot == null) {
+            Log.warn("OperationJanitor", "Incremental packing requested, but ${workingRootProvider.javaClass.simpleName} does not provide persistent cache")
+            return
+        }
+        taskCache = TaskCache(cacheRoot, this, settings)
+    }
+
+    /** Measurements of tasks, present only when [TimingReport] is requested. */
+    var taskTimings: TaskTimings? = null
+        internal set
+
     fun createTempFile(taskName: String, fileName: String, file: Resource.ResourceFile, extension: String?): File {
         val sb = StringBuilder()
+        val seed = "$taskName/${file.virtualPath()}/$fileName/$extension"
+        var attempt = 0
         var result: File
         do {
             sb.append(fileName).append('.')
             sb.append(taskName).append("-f-")
-            fillWithRandomText(sb)
+            fillWithText(sb, seed, attempt++)
             sb.append('.')
             for (flag in file.flags) {
                 sb.append('.').append(flag)
@@ -28,17 +50,19 @@ class OperationJanitor(private val workingRootProvider: WorkingRootProvider) {
             result = File(workingRoot, sb.toString())
             sb.setLength(0)
             if (Log.DEBUG) Log.debug("OperationJanitor", "Trying to create file in \"" + workingRoot.absolutePath + "\" called \"" + sb + "\".")
-        } while (result.exists())
+        } while (!reserve(result))
         return result
     }
 
     fun createTempFile(taskName: String, fileName: String, extension: String?): File {
         val sb = StringBuilder()
+        val seed = "$taskName/$fileName/$extension"
+        var attempt = 0
         var result: File
         do {
             sb.append(fileName).append('.')
             sb.append(taskName).append("-f-")
-            fillWithRandomText(sb)
+            fillWithText(sb, seed, attempt++)
             sb.append('.').append(extension ?: "")
             if (extension != null) {
                 sb.append(extension)
@@ -46,29 +70,46 @@ class OperationJanitor(private val workingRootProvider: WorkingRootProvider) {
             result = File(workingRoot, sb.toString())
             if (Log.DEBUG) Log.debug("OperationJanitor", "Trying to create file from scratch in \"" + workingRoot.absolutePath + "\" called \"" + sb + "\".")
             sb.setLength(0)
-        } while (result.exists())
+        } while (!reserve(result))
         return result
     }
 
     fun createTempDirectory(taskName: String): File {
         val sb = StringBuilder()
+        var attempt = 0
         var result: File
         do {
             sb.append(taskName).append("-d-")
-            fillWithRandomText(sb)
+            fillWithText(sb, taskName, attempt++)
             result = File(workingRoot, sb.toString())
             sb.setLength(0)
-        } while (result.exists())
+        } while (!reserve(result))
         result.mkdirs()
         return result
     }
 
-    private fun fillWithRandomText(b: StringBuilder, amount: Int = 6) {
+    /** Names returned by this janitor, files may not be created yet. Guarded by itself. */
+    private val reservedNames = HashSet<String>()
+
+    /** @return true if the file does not exist and was not given to anyone yet, so it can be used */
+    private fun reserve(file: File): Boolean {
+        synchronized(reservedNames) {
+            if (file.exists() || !reservedNames.add(file.name)) {
+                return false
+            }
+        }
+        taskTimings?.created(file)
+        return true
+    }
+
+    /** Appends pronounceable text, which is always the same for the same [seed] and [attempt]. */
+    private fun fillWithText(b: StringBuilder, seed: String, attempt: Int, amount: Int = 6) {
+        val random = java.util.Random(seed.hashCode() * 31L + attempt)
         for (i in 1..amount) {
             if (i and 1 == 1) {
-                b.append(Consonants[Random.nextInt(Consonants.size)])
+                b.append(Consonants[random.nextInt(Consonants.size)])
             } else {
-                b.append(Vowels[Random.nextInt(Vowels.size)])
+                b.append(Vowels[random.nextInt(Vowels.size)])
             }
         }
     }
@@ -92,7 +133,23 @@ class OperationJanitor(private val workingRootProvider: WorkingRootProvider) {
         }
     }
 
+    /** Deletes all files and directories created through this janitor so far. */
+    fun clearTemporaryFiles() {
+        synchronized(reservedNames) {
+            for (name in reservedNames) {
+                val file = File(workingRoot, name)
+                if (file.isDirectory) {
+                    clearFolder(file, deleteDir = true)
+                } else if (file.exists() && !file.delete()) {
+                    Log.warn("OperationJanitor", "File ${file.absolutePath} not deleted.")
+                }
+            }
+            reservedNames.clear()
+        }
+    }
+
     fun dispose() {
+        taskCache?.dispose()
         if (workingRootProvider.shouldDeleteRoot) {
             clearFolder(workingRoot, deleteDir = true)
         }
@@ -101,13 +158,15 @@ class OperationJanitor(private val workingRootProvider: WorkingRootProvider) {
     companion object {
         private val Vowels: CharArray = charArrayOf('a', 'e', 'i', 'o', 'u', 'y')
         private val Consonants: CharArray = charArrayOf('b', 'c', 'd', 'f', 'g', 'h', 'j', 'k', 'l', 'm', 'n', 'p', 'q', 'r', 's', 't', 'v', 'w', 'x', 'z')
-        private val Random = java.util.Random()
     }
 }
 
 interface WorkingRootProvider {
     fun getTemporaryRoot(operationJanitor: OperationJanitor): File
 
+    /** @return directory which persists between operations, for [Incremental] packing, or null if not supported */
+    fun getCacheRoot(operationJanitor: OperationJanitor): File? = null
+
     val shouldDeleteRoot: Boolean
 }
 
@@ -123,9 +182,22 @@ class LocalWorkingRootProvider(val workingRoot: File) : WorkingRootProvider {
 
     override fun getTemporaryRoot(operationJanitor: OperationJanitor): File {
         workingRoot.mkdirs()
-        operationJanitor.clearFolder(workingRoot)
+        for (file in workingRoot.listFiles() ?: emptyArray()) {
+            if (file.name == CacheFolderName) continue
+            if (file.isDirectory) {
+                operationJanitor.clearFolder(file, deleteDir = true)
+            } else if (!file.delete()) {
+                Log.warn("LocalWorkingRootProvider", "File ${file.absolutePath} not deleted.")
+            }
+        }
         return workingRoot
     }
 
+    override fun getCacheRoot(operationJanitor: OperationJanitor): File = File(workingRoot, CacheFolderName)
+
     override val shouldDeleteRoot: Boolean = false
+
+    private companion object {
+        const val CacheFolderName = ".cache"
+    }
 }
\ No newline at end of file
@@ -0,0 +1,259 @@
+package com.darkyen.resourcepacker
+
+import com.esotericsoftware.minlog.Log
+import java.io.File
+import java.io.FileInputStream
+import java.io.IOException
+import java.nio.channels.FileChannel
+import java.nio.file.*
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+
+val SyncOutput = SettingKey("SyncOutput", false,
+        "Instead of clearing the output directory and copying everything into it, " +
+                "write only files which are new or have changed and delete only files which are no longer created. " +
+                "Files are written atomically, so their readers never see them half-written.")
+
+val OutputThreads = SettingKey("OutputThreads", 4,
+        "How many files are written into the output directory at the same time.")
+
+val HardlinkOutput = SettingKey("HardlinkOutput", false,
+        "Files which were not changed by packing are hardlinked into the output directory instead of copied, " +
+                "if it is on the same file system. Output files then share content with the resources, so don't edit them.")
+
+/**
+ * Writes the virtual tree into output directory [to], touching only the files that differ.
+ *
+ * Files are written on [threads] threads. Temporary files of [janitor], which are created only once, are moved.
+ * Other files are hardlinked if [HardlinkOutput] is set, or copied by [FileChannel.transferTo].
+ *
+ * @author Darkyen
+ */
+internal class OutputWriter(private val to: File,
+                            private val janitor: OperationJanitor,
+                            private val preferSymlinks: Boolean = PreferSymlinks.get(),
+                            private val hardlink: Boolean = HardlinkOutput.get(),
+                            private val threads: Int = OutputThreads.get()) {
+
+    private val written = AtomicInteger()
+    private val unchanged = AtomicInteger()
+    private val deleted = AtomicInteger()
+
+    val writtenCount: Int
+        get() = written.get()
+
+    /** Working files are created directly in the working root, so their paths start with it without resolving them */
+    private val workingRoot = janitor.workingRoot.absolutePath + File.separatorChar
+
+    /** Makes [to] contain exactly what [root] would create by [Resource.ResourceDirectory.copyYourself]. */
+    fun sync(root: Resource.ResourceDirectory) {
+        val outputs = collectOutputs(root)
+        write(outputs)
+        deleteStale(outputs.keys)
+        Log.info("OutputWriter", "Output synchronized: $written written, $unchanged unchanged, $deleted deleted")
+    }
+
+    /** Writes given resources to their paths (in format of [collectOutputs]), where they differ from what is already there. */
+    fun write(outputs: Map<String, Resource>) {
+        val sourceUses = HashMap<File, Int>()
+        for (resource in outputs.values) {
+            if (resource is Resource.ResourceDirectory) continue
+            // Files which are still only in memory are written later, on the writer threads
+            val file = (resource as Resource.ResourceFile).fileLocation
+            sourceUses[file] = (sourceUses[file] ?: 0) + 1
+        }
+
+        // Canonical path of the resource directory is the same for all files, don't resolve it again for each
+        val resourceDirPath = if (preferSymlinks) outputs.values.firstOrNull()?.resourceRoot()?.directory?.canonicalPath else null
+        val writes = ArrayList<Callable<Unit>>()
+        for ((path, resource) in outputs) {
+            val target = File(to, path)
+            when (resource) {
+                is Resource.ResourceDirectory -> createDirectory(target)
+                is Resource.ResourceFile -> writes.add(Callable {
+                    val linkTarget = if (resourceDirPath != null) resource.symlinkTarget(resourceDirPath) else null
+                    writeFile(resource.file, target, linkTarget, sourceUses[resource.fileLocation] == 1)
+                })
+            }
+        }
+
+        if (threads <= 1 || writes.size <= 1) {
+            for (write in writes) {
+                write.call()
+            }
+        } else {
+            val executor = Executors.newFixedThreadPool(minOf(threads, writes.size), OperationContext.get().newThreadFactory("OutputWriter"))
+            try {
+                for (future in executor.invokeAll(writes)) {
+                    try {
+                        future.get()
+                    } catch (e: ExecutionException) {
+                        throw e.cause ?: e
+                    }
+                }
+            } finally {
+                executor.shutdown()
+            }
+        }
+    }
+
+    private fun createDirectory(target: File) {
+        if (!target.isDirectory) {
+            if (target.exists()) {
+                delete(target)
+            }
+            target.mkdirs()
+        }
+    }
+
+    /**
+     * @param linkTarget to symlink to, if file should be symlinked
+     * @param onlyUse true if [source] is written only to [target], so it can be moved there, if it is a working file
+     */
+    private fun writeFile(source: File, target: File, linkTarget: Path?, onlyUse: Boolean) {
+        if (target.exists() && isUpToDate(target.toPath(), source, linkTarget)) {
+            unchanged.incrementAndGet()
+            return
+        }
+
+        if (target.isDirectory) {
+            delete(target)
+        }
+        target.parentFile.mkdirs()
+
+        // Write next to the target, so that it can be atomically moved over it
+        val temporary = File(target.parentFile, ".${target.name}.tmp").toPath()
+        Files.deleteIfExists(temporary)
+        val isWorkingFile = source.absolutePath.startsWith(workingRoot)
+        if (linkTarget != null) {
+            try {
+                Files.createSymbolicLink(temporary, linkTarget)
+            } catch (ex: Exception) {
+                Log.warn("OutputWriter", "Failed to symlink $source to $target, file will be copied", ex)
+                transfer(source, temporary)
+            }
+        } else if (isWorkingFile && onlyUse) {
+            // Nobody needs working files after they are written
+            Files.move(source.toPath(), temporary)
+        } else if (hardlink && !isWorkingFile) {
+            try {
+                Files.createLink(temporary, source.toPath())
+            } catch (ex: IOException) {
+                // Probably different file system
+                transfer(source, temporary)
+            }
+        } else {
+            transfer(source, temporary)
+        }
+
+        try {
+            Files.move(temporary, target.toPath(), StandardCopyOption.ATOMIC_MOVE)
+        } catch (ex: AtomicMoveNotSupportedException) {
+            Files.move(temporary, target.toPath(), StandardCopyOption.REPLACE_EXISTING)
+        }
+        written.incrementAndGet()
+    }
+
+    private fun transfer(source: File, target: Path) {
+        FileChannel.open(source.toPath(), StandardOpenOption.READ).use { input ->
+            FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE).use { output ->
+                val size = input.size()
+                var position = 0L
+                while (position < size) {
+                    position += input.transferTo(position, size - position, output)
+                }
+            }
+        }
+    }
+
+    /** Deletes [file] from output, recursively. */
+    fun delete(file: File) {
+        if (Files.isDirectory(file.toPath(), LinkOption.NOFOLLOW_LINKS)) {
+            for (child in file.listFiles() ?: emptyArray()) {
+                delete(child)
+            }
+        }
+        if (file.delete()) {
+            deleted.incrementAndGet()
+        } else {
+            Log.warn("OutputWriter", "${file.path} not deleted.")
+        }
+    }
+
+    private fun isUpToDate(target: Path, source: File, linkTarget: Path?): Boolean {
+        if (linkTarget != null) {
+            return Files.isSymbolicLink(target) && Files.readSymbolicLink(target) == linkTarget
+        }
+        if (Files.isSymbolicLink(target) || !Files.isRegularFile(target) || Files.size(target) != source.length()) {
+            return false
+        }
+        return Files.isSameFile(target, source.toPath()) || contentEquals(target.toFile(), source)
+    }
+
+    private fun contentEquals(a: File, b: File): Boolean {
+        return FileInputStream(a).use { inA ->
+            FileInputStream(b).use { inB ->
+                contentEquals(inA, inB)
+            }
+        }
+    }
+
+    private fun contentEquals(a: FileInputStream, b: FileInputStream): Boolean {
+        val bufferA = ByteArray(64 * 1024)
+        val bufferB = ByteArray(bufferA.size)
+        while (true) {
+            val read = a.readFully(bufferA)
+            if (read != b.readFully(bufferB)) return false
+            if (read <= 0) return true
+            for (i in 0 until read) {
+                if (bufferA[i] != bufferB[i]) return false
+            }
+        }
+    }
+
+    private fun FileInputStream.readFully(buffer: ByteArray): Int {
+        var total = 0
+        while (total < buffer.size) {
+            val read = read(buffer, total, buffer.size - total)
+            if (read < 0) break
+            total += read
+        }
+        return total
+    }
+
+    /** Deletes everything in [to] which is not in [outputs] (in format of [collectOutputs]). */
+    fun deleteStale(outputs: Set<String>) {
+        deleteStale(to, "", outputs)
+    }
+
+    private fun deleteStale(directory: File, prefix: String, outputs: Set<String>) {
+        for (file in directory.listFiles() ?: emptyArray()) {
+            val isDirectory = Files.isDirectory(file.toPath(), LinkOption.NOFOLLOW_LINKS)
+            val path = if (isDirectory) prefix + file.name + '/' else prefix + file.name
+            if (path !in outputs) {
+                delete(file)
+            } else if (isDirectory) {
+                deleteStale(file, path, outputs)
+            }
+        }
+    }
+}
+
+/**
+ * Collects paths relative to output directory, that [directory] would create in [Resource.ResourceDirectory.copyYourself].
+ * Paths of directories end with '/'.
+ */
+internal fun collectOutputs(directory: Resource.ResourceDirectory, prefix: String = "",
+                            into: MutableMap<String, Resource> = LinkedHashMap()): MutableMap<String, Resource> {
+    for (file in directory.files) {
+        into[prefix + file.simpleName] = file
+    }
+    for (childDirectory in directory.directories) {
+        val childPrefix = prefix + childDirectory.name + '/'
+        into[childPrefix] = childDirectory
+        collectOutputs(childDirectory, childPrefix, into)
+    }
+    return into
+}
@@ -0,0 +1,372 @@
+@file:JvmName("ResourcePacker")
+@file:JvmMultifileClass
+
+package com.darkyen.resourcepacker
+
+import com.badlogic.gdx.utils.GdxNativesLoader
+import com.darkyen.resourcepacker.image.DefaultImageScaling
+import com.darkyen.resourcepacker.image.ImageMemoryBudget
+import com.darkyen.resourcepacker.image.TileSize
+import com.darkyen.resourcepacker.tasks.DefaultTasks
+import com.esotericsoftware.minlog.Log
+import java.io.*
+import java.net.*
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.nio.file.attribute.PosixFilePermissions
+import java.security.MessageDigest
+import java.security.SecureRandom
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+
+/*
+ * Daemon mode of the Resource Packer
+ */
+
+/** Port on the loopback interface, on which the daemon listens by default */
+const val DefaultDaemonPort = 47318
+
+/** Setting keys of the Resource Packer itself, which the daemon understands by default */
+val DefaultSettingKeys: List<SettingKey<*>> = listOf(
+        PreferSymlinks, ParallelTasks, StrictFileChecks, Incremental, SyncOutput, OutputThreads, HardlinkOutput,
+        TimingReport, TimingSummarySize, TileSize, DefaultImageScaling, ImageMemoryBudget)
+
+private const val ProtocolVersion = 2
+
+private const val MessageLog: Byte = 1
+private const val MessageDone: Byte = 2
+private const val MaxMessageLength = 16000
+/** Requests which wait for a free thread, further requests are refused */
+private const val MaxWaitingRequests = 50
+/** Time in which clients must send their request, so that they don't hold a thread */
+private const val RequestTimeoutMs = 10000
+
+/**
+ * @return file with the token of the daemon on [port], which only the user who started it can read,
+ * in the home directory of the current user
+ */
+fun daemonTokenFile(port: Int = DefaultDaemonPort): File {
+    return File(File(System.getProperty("user.home"), ".resource-packer"), "daemon-$port.token")
+}
+
+/**
+ * Keeps the packer loaded and packs resources for [packResourcesInDaemon] clients, until the thread is interrupted.
+ * Small packs then do not pay for JVM startup, native library loading and cold code.
+ *
+ * Listens on [port] of the loopback interface. Only clients which send the random token written into [tokenFile] are served,
+ * so other local users, who can't read the file, can't make it pack anything this process can read and write.
+ * Requests are packed at the same time, on as many threads as there are processors, unless [workingRootProvider]
+ * is not temporary, then they are packed one at a time, because they would share the working root.
+ * Up to [MaxWaitingRequests] requests wait for a free thread, clients of further requests are disconnected.
+ * Log messages of each request are sent to its client, instead of the log of the daemon.
+ *
+ * @param settingKeys keys of settings which clients may send, settings with other keys are refused
+ */
+@JvmOverloads
+fun runPackerDaemon(port: Int = DefaultDaemonPort,
+                    settingKeys: Collection<SettingKey<*>> = DefaultSettingKeys,
+                    workingRootProvider: WorkingRootProvider = TemporaryWorkingRootProvider,
+                    tokenFile: File = daemonTokenFile(port)) {
+    // Natives are otherwise loaded lazily, by tasks which need them
+    GdxNativesLoader.load()
+    // Initializes all default tasks
+    Log.debug("PackerDaemon", "Default tasks: ${DefaultTasks.joinToString { it.Name }}")
+
+    val keys = settingKeys.associateBy { it.name }
+    val threads = if (workingRootProvider !== TemporaryWorkingRootProvider) 1 else Runtime.getRuntime().availableProcessors()
+    // Each request binds its own context, this one only names the threads
+    val executor = ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, ArrayBlockingQueue(MaxWaitingRequests),
+            OperationContext(emptyList()).newThreadFactory("PackerDaemon"))
+    executor.allowCoreThreadTimeOut(true)
+
+    val token = ByteArray(32)
+    SecureRandom().nextBytes(token)
+
+    Log.setLogger(DaemonLogger())
+    try {
+        ServerSocket(port, 50, InetAddress.getLoopbackAddress()).use { server ->
+            // Only after the port is ours, so that the token of another daemon on it is not overwritten
+            writeTokenFile(tokenFile, token)
+            // To notice interruption
+            server.soTimeout = 1000
+            Log.info("PackerDaemon", "Listening on port $port")
+
+            while (!Thread.currentThread().isInterrupted) {
+                val socket = try {
+                    server.accept()
+                } catch (e: SocketTimeoutException) {
+                    continue
+                }
+
+                try {
+                    executor.execute {
+                        socket.use {
+                            socket.soTimeout = RequestTimeoutMs
+                            serveDaemonRequest(socket, token, keys, workingRootProvider)
+                        }
+                    }
+                } catch (e: RejectedExecutionException) {
+                    Log.warn("PackerDaemon", "Too many requests, refusing a client")
+                    socket.close()
+                }
+            }
+        }
+    } finally {
+        executor.shutdown()
+        if (tokenFile.isFile && tokenFile.readBytes().contentEquals(token)) {
+            tokenFile.delete()
+        }
+        Log.setLogger(Log.Logger())
+        Log.info("PackerDaemon", "Stopped")
+    }
+}
+
+/** Writes the [token] into the [file], which only the current user can read, if the file system supports it. */
+private fun writeTokenFile(file: File, token: ByteArray) {
+    file.parentFile.mkdirs()
+    val directory = file.parentFile.toPath()
+    val temp = try {
+        Files.createTempFile(directory, "token", ".tmp", PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")))
+    } catch (e: UnsupportedOperationException) {
+        val temp = Files.createTempFile(directory, "token", ".tmp").toFile()
+        temp.setReadable(false, false)
+        temp.setWritable(false, false)
+        temp.setReadable(true, true)
+        temp.setWritable(true, true)
+        temp.toPath()
+    }
+    Files.write(temp, token)
+    Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+}
+
+/**
+ * Packs resources like [packResources], but in a daemon started by [runPackerDaemon] on [port].
+ * Log messages of the operation are logged here, as they arrive.
+ * [tasks] are sent by their class name and must be either objects or have a public no-argument constructor.
+ *
+ * @param tokenFile with the token of the daemon, given to [runPackerDaemon]
+ * @return false if there is no daemon on [port], so the caller may pack the resources itself
+ * @throws IllegalStateException when the daemon fails to pack the resources
+ */
+@JvmOverloads
+fun packResourcesInDaemon(from: File, to: File,
+                          settings: List<Setting<*>> = emptyList(),
+                          tasks: List<Task> = DefaultTasks,
+                          port: Int = DefaultDaemonPort,
+                          tokenFile: File = daemonTokenFile(port)): Boolean {
+    val token = try {
+        tokenFile.readBytes()
+    } catch (e: IOException) {
+        // No daemon was started by this user
+        return false
+    }
+    val socket = try {
+        Socket(InetAddress.getLoopbackAddress(), port)
+    } catch (e: ConnectException) {
+        return false
+    }
+
+    socket.use {
+        val output = DataOutputStream(BufferedOutputStream(socket.getOutputStream()))
+        output.writeInt(ProtocolVersion)
+        output.writeInt(token.size)
+        output.write(token)
+        output.writeUTF(from.absolutePath)
+        output.writeUTF(to.absolutePath)
+        output.writeInt(settings.size)
+        for (setting in settings) {
+            output.writeUTF(setting.key.name)
+            writeSettingValue(output, setting.value)
+        }
+        output.writeInt(tasks.size)
+        for (task in tasks) {
+            output.writeUTF(task.javaClass.name)
+        }
+        output.flush()
+
+        val input = DataInputStream(BufferedInputStream(socket.getInputStream()))
+        var done = false
+        while (!done) {
+            when (input.readByte()) {
+                MessageLog -> {
+                    val level = input.readInt()
+                    val category = input.readUTF().takeIf { it.isNotEmpty() }
+                    val message = input.readUTF()
+                    when (level) {
+                        Log.LEVEL_ERROR -> Log.error(category, message)
+                        Log.LEVEL_WARN -> Log.warn(category, message)
+                        Log.LEVEL_INFO -> Log.info(category, message)
+                        Log.LEVEL_DEBUG -> Log.debug(category, message)
+                        else -> Log.trace(category, message)
+                    }
+                }
+                MessageDone -> {
+                    val error = input.readUTF()
+                    if (error.isNotEmpty()) {
+                        throw IllegalStateException("Daemon failed to pack resources: $error")
+                    }
+                    done = true
+                }
+                else -> throw IOException("Unexpected message from daemon")
+            }
+        }
+    }
+    return true
+}
+
+/** Reads a request of [packResourcesInDaemon] from [socket], packs it and sends back the log and the result. */
+private fun serveDaemonRequest(socket: Socket, token: ByteArray, keys: Map<String, SettingKey<*>>, workingRootProvider: WorkingRootProvider) {
+    val input = DataInputStream(BufferedInputStream(socket.getInputStream()))
+    val output = DataOutputStream(BufferedOutputStream(socket.getOutputStream()))
+
+    var error = ""
+    try {
+        val version = input.readInt()
+        if (version != ProtocolVersion) {
+            throw IllegalArgumentException("Client uses protocol version $version, daemon $ProtocolVersion")
+        }
+        val tokenSize = input.readInt()
+        val clientToken = ByteArray(if (tokenSize == token.size) tokenSize else 0)
+        input.readFully(clientToken)
+        if (!MessageDigest.isEqual(clientToken, token)) {
+            throw SecurityException("Client did not send the token of the daemon")
+        }
+        val from = File(input.readUTF())
+        val to = File(input.readUTF())
+        val settings = ArrayList<Setting<*>>()
+        for (i in 0 until input.readInt()) {
+            val name = input.readUTF()
+            @Suppress("UNCHECKED_CAST")
+            val key = keys[name] as SettingKey<Any?>? ?: throw IllegalArgumentException("Unknown setting $name")
+            settings.add(Setting(key, readSettingValue(input)))
+        }
+        val tasks = ArrayList<Task>()
+        for (i in 0 until input.readInt()) {
+            tasks.add(taskInstance(input.readUTF()))
+        }
+
+        val context = OperationContext(settings)
+        context.logger = object : Log.Logger() {
+            override fun log(level: Int, category: String?, message: String?, ex: Throwable?) {
+                val text = if (ex == null) message ?: "" else {
+                    val stackTrace = StringWriter()
+                    ex.printStackTrace(PrintWriter(stackTrace))
+                    "$message\n$stackTrace"
+                }
+                try {
+                    synchronized(output) {
+                        output.writeByte(MessageLog.toInt())
+                        output.writeInt(level)
+                        output.writeUTF(category ?: "")
+                        // writeUTF can't write more than 64kB
+                        output.writeUTF(if (text.length > MaxMessageLength) text.substring(0, MaxMessageLength) else text)
+                        output.flush()
+                    }
+                } catch (e: IOException) {
+                    // Client is gone, packing continues without it
+                }
+            }
+        }
+
+        if (!packResources(from, to, tasks, workingRootProvider, context)) {
+            error = "Nothing to pack in ${from.path}"
+        }
+    } catch (e: Exception) {
+        Log.error("PackerDaemon", "Request failed", e)
+        error = e.toString().take(MaxMessageLength)
+    }
+
+    synchronized(output) {
+        output.writeByte(MessageDone.toInt())
+        output.writeUTF(error)
+        output.flush()
+    }
+}
+
+/** @return instance of the task with given class [name], either its object instance or a new instance */
+private fun taskInstance(name: String): Task {
+    // Not initialized, so that classes which are not tasks don't run any code
+    val taskClass = Class.forName(name, false, Task::class.java.classLoader)
+    if (!Task::class.java.isAssignableFrom(taskClass)) {
+        throw IllegalArgumentException("$name is not a task")
+    }
+    val instance = try {
+        taskClass.getField("INSTANCE").get(null)
+    } catch (e: NoSuchFieldException) {
+        taskClass.getDeclaredConstructor().newInstance()
+    }
+    return instance as Task
+}
+
+private const val ValueNull: Byte = 0
+private const val ValueBoolean: Byte = 1
+private const val ValueInt: Byte = 2
+private const val ValueLong: Byte = 3
+private const val ValueFloat: Byte = 4
+private const val ValueDouble: Byte = 5
+private const val ValueString: Byte = 6
+private const val ValueFile: Byte = 7
+private const val ValueEnum: Byte = 8
+
+private fun writeSettingValue(output: DataOutputStream, value: Any?) {
+    when (value) {
+        null -> output.writeByte(ValueNull.toInt())
+        is Boolean -> { output.writeByte(ValueBoolean.toInt()); output.writeBoolean(value) }
+        is Int -> { output.writeByte(ValueInt.toInt()); output.writeInt(value) }
+        is Long -> { output.writeByte(ValueLong.toInt()); output.writeLong(value) }
+        is Float -> { output.writeByte(ValueFloat.toInt()); output.writeFloat(value) }
+        is Double -> { output.writeByte(ValueDouble.toInt()); output.writeDouble(value) }
+        is String -> { output.writeByte(ValueString.toInt()); output.writeUTF(value) }
+        is File -> { output.writeByte(ValueFile.toInt()); output.writeUTF(value.absolutePath) }
+        is Enum<*> -> {
+            output.writeByte(ValueEnum.toInt())
+            val enumClass = value.javaClass
+            // Constants with body are subclasses of their enum
+            output.writeUTF((if (enumClass.isEnum) enumClass else enumClass.superclass).name)
+            output.writeUTF(value.name)
+        }
+        else -> throw IllegalArgumentException("Setting value $value of ${value.javaClass} can't be sent to the daemon")
+    }
+}
+
+private fun readSettingValue(input: DataInputStream): Any? {
+    return when (input.readByte()) {
+        ValueNull -> null
+        ValueBoolean -> input.readBoolean()
+        ValueInt -> input.readInt()
+        ValueLong -> input.readLong()
+        ValueFloat -> input.readFloat()
+        ValueDouble -> input.readDouble()
+        ValueString -> input.readUTF()
+        ValueFile -> File(input.readUTF())
+        ValueEnum -> {
+            val className = input.readUTF()
+            // Not initialized, so that classes which are not enums don't run any code
+            val enumClass = Class.forName(className, false, Task::class.java.classLoader)
+            if (!enumClass.isEnum) {
+                throw IllegalArgumentException("$className is not an enum")
+            }
+            val name = input.readUTF()
+            enumClass.enumConstants.find { (it as Enum<*>).name == name }
+                    ?: throw IllegalArgumentException("Unknown constant $name of $enumClass")
+        }
+        else -> throw IOException("Unknown setting value type")
+    }
+}
+
+/**
+ * Sends log messages to the logger of the operation running on the current thread, if it has one.
+ * Other messages are logged as usual.
+ */
+internal class DaemonLogger : Log.Logger() {
+    override fun log(level: Int, category: String?, message: String?, ex: Throwable?) {
+        val logger = OperationContext.current.get()?.logger
+        if (logger != null) {
+            logger.log(level, category, message, ex)
+        } else {
+            super.log(level, category, message, ex)
+        }
+    }
+}
@@ -1,10 +1,20 @@
 package com.darkyen.resourcepacker
 
 import com.badlogic.gdx.utils.SnapshotArray
+import com.darkyen.resourcepacker.image.ImageMemory
+import com.darkyen.resourcepacker.image.saveToFile
 import com.darkyen.resourcepacker.util.SnapshotArrayList
 import com.esotericsoftware.minlog.Log
+import java.awt.image.BufferedImage
 import java.io.File
+import java.io.IOException
 import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.attribute.BasicFileAttributes
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.ForkJoinTask
+import java.util.concurrent.RecursiveAction
+import java.util.concurrent.RecursiveTask
 import com.badlogic.gdx.utils.Array as GdxArray
 
 /**
@@ -17,7 +27,22 @@ sealed class Resource {
 
     abstract val name: String
 
-    abstract val flags:List<String>
+    abstract val flags: FlagList
+
+    /**
+     * Whether this is currently a child of its [parent].
+     * Then its flags are counted in [ResourceDirectory.subtreeIndex] of its parents.
+     */
+    @Volatile
+    internal var attached = false
+
+    /** Called by [FlagList] when [flag] is added ([delta] = 1) or removed ([delta] = -1). */
+    internal fun flagChanged(flag: String, delta: Int) {
+        if (attached) {
+            parent.updateSubtreeIndex { it.addFlag(flag, delta) }
+            TreeWorklist.subtreeChanged(this)
+        }
+    }
 
     /**
      * Runs given task on itself and children, recursively.
@@ -29,6 +54,27 @@ sealed class Resource {
         parent.removeChild(this)
     }
 
+    /** @return the root of the tree, whose directory is the resource directory */
+    fun resourceRoot(): ResourceDirectory {
+        var parent = parent
+        while (parent.parent != parent) {
+            parent = parent.parent
+        }
+        return parent
+    }
+
+    /** @return path of this resource in the tree, from the root, without flags */
+    internal fun virtualPath(): String {
+        val names = ArrayList<String>()
+        names.add(if (this is ResourceFile) simpleName else name)
+        var parent = parent
+        while (parent.parent != parent) {
+            names.add(parent.name)
+            parent = parent.parent
+        }
+        return names.asReversed().joinToString("/")
+    }
+
     fun copyFlags():ArrayList<String> = ArrayList<String>(flags.size+2).apply {addAll(flags)}
 
     inline fun copyFlagsExcept(remove:(String)->Boolean):ArrayList<String> = ArrayList<String>(flags.size+2).apply {
@@ -44,19 +90,35 @@ sealed class Resource {
         override var parent: ResourceDirectory = parent ?: this
 
         override val name: String
-        override val flags: MutableList<String>
+        override val flags: FlagList
 
         init {
             val parsedName = parseName(directory.name, false)
             this.name = parsedName.first
-            this.flags = parsedName.second
+            this.flags = FlagList(this, parsedName.second)
         }
 
         private val childDirectories = SnapshotArrayList(false, 16, ResourceDirectory::class.java)
         private val childFiles = SnapshotArrayList(false, 16, ResourceFile::class.java)
 
-        private val removedChildDirectories = GdxArray<ResourceDirectory>(false, 16, ResourceDirectory::class.java)
-        private val removedChildFiles = GdxArray<ResourceFile>(false, 16, ResourceFile::class.java)
+        /** Flags and extensions of everything in this directory, recursively */
+        internal val subtreeIndex = SubtreeIndex()
+
+        /** Applies [update] to [subtreeIndex] of this directory and of all directories it is in. */
+        internal inline fun updateSubtreeIndex(update: (SubtreeIndex) -> Unit) {
+            var directory = this
+            while (true) {
+                update(directory.subtreeIndex)
+                if (!directory.attached) break
+                directory = directory.parent
+            }
+        }
+
+        /* Children by name, for lookups by name. Guarded by this, like the children lists. */
+        private val childDirectoriesByName = NameIndex<ResourceDirectory>()
+        private val childFilesByName = NameIndex<ResourceFile>()
+        private val removedChildDirectoriesByName = NameIndex<ResourceDirectory>()
+        private val removedChildFilesByName = NameIndex<ResourceFile>()
 
         /**
          * List of all directories currently present in this virtual directory.
@@ -77,16 +139,36 @@ sealed class Resource {
         fun hasChildren(): Boolean = childDirectories.isNotEmpty() || childFiles.isNotEmpty()
 
         fun removeChild(dir: ResourceDirectory) {
-            if (childDirectories.removeValue(dir, true)) {
-                removedChildDirectories.add(dir)
+            if (TreeJournal.removed(this, dir)) return
+            val removed = synchronized(this) {
+                if (childDirectories.removeValue(dir, true)) {
+                    childDirectoriesByName.remove(dir)
+                    removedChildDirectoriesByName.add(dir)
+                    dir.attached = false
+                    updateSubtreeIndex { it.add(dir, -1) }
+                    true
+                } else false
+            }
+            if (removed) {
+                TreeWorklist.childrenChanged(this)
             } else {
                 Log.warn("Removing directory which doesn't exist: $dir")
             }
         }
 
         fun removeChild(file: ResourceFile) {
-            if (childFiles.removeValue(file, true)) {
-                removedChildFiles.add(file)
+            if (TreeJournal.removed(this, file)) return
+            val removed = synchronized(this) {
+                if (childFiles.removeValue(file, true)) {
+                    childFilesByName.remove(file)
+                    removedChildFilesByName.add(file)
+                    file.attached = false
+                    updateSubtreeIndex { it.add(file, -1) }
+                    true
+                } else false
+            }
+            if (removed) {
+                TreeWorklist.childrenChanged(this)
             } else {
                 Log.warn("Removing file which doesn't exist: $file")
             }
@@ -169,14 +251,30 @@ sealed class Resource {
         }
 
         fun addChild(file: ResourceDirectory): ResourceDirectory {
-            childDirectories.add(file)
             file.parent = this
+            if (TreeJournal.added(this, file)) return file
+            synchronized(this) {
+                childDirectories.add(file)
+                childDirectoriesByName.add(file)
+                file.attached = true
+                updateSubtreeIndex { it.add(file, 1) }
+            }
+            TreeWorklist.childrenChanged(this)
+            TreeWorklist.subtreeChanged(file)
             return file
         }
 
         fun addChild(file: ResourceFile): ResourceFile {
-            childFiles.add(file)
             file.parent = this
+            if (TreeJournal.added(this, file)) return file
+            synchronized(this) {
+                childFiles.add(file)
+                childFilesByName.add(file)
+                file.attached = true
+                updateSubtreeIndex { it.add(file, 1) }
+            }
+            TreeWorklist.childrenChanged(this)
+            TreeWorklist.subtreeChanged(file)
             return file
         }
 
@@ -192,12 +290,9 @@ sealed class Resource {
         fun addChild(javaFile: File, createStructure: Boolean = true): Resource? {
             if (!javaFile.name.startsWith('.') && (javaFile.isDirectory || javaFile.isFile)) {
                 if (javaFile.isFile) {
-                    val file = ResourceFile(javaFile, this)
-                    childFiles.add(file)
-                    return file
+                    return addChild(ResourceFile(javaFile, this))
                 } else {
-                    val dir = ResourceDirectory(javaFile, this)
-                    childDirectories.add(dir)
+                    val dir = addChild(ResourceDirectory(javaFile, this))
                     if (createStructure) {
                         dir.addResourceChildrenFromFilesystem()
                     }
@@ -211,10 +306,19 @@ sealed class Resource {
             }
         }
 
+        /**
+         * @return directory with given name (without flags), present or removed (present ones are preferred)
+         */
         fun getChildDirectory(name: String): ResourceDirectory? {
-            return childDirectories.find { it.name == name } ?: removedChildDirectories.find { it.name == name }
+            synchronized(this) {
+                return childDirectoriesByName.first(name) ?: removedChildDirectoriesByName.first(name)
+            }
         }
 
+        /**
+         * @param name without flags, with optional extension
+         * @return file with given name, present or removed (present ones are preferred)
+         */
         fun getChildFile(name: String): ResourceFile? {
             if (name.contains(".")) {
                 val dotIndex = name.indexOf(".")
@@ -222,18 +326,43 @@ sealed class Resource {
                     Log.error("ResourceDirectory", "There is no child file with two dots in name. There is an error. (\"$name\")")
                     return null
                 } else {
-                    val newName = name.substring(0, dotIndex)
-                    val extension = name.substring(dotIndex + 1).toLowerCase()
-                    return childFiles.find { it.name == newName && it.extension == extension } ?: removedChildFiles.find { it.name == newName && it.extension == extension }
+                    return getChildFile(name.substring(0, dotIndex), name.substring(dotIndex + 1).toLowerCase())
                 }
             } else {
-                return childFiles.find { it.name == name } ?: removedChildFiles.find { it.name == name }
+                synchronized(this) {
+                    return childFilesByName.first(name) ?: removedChildFilesByName.first(name)
+                }
             }
         }
 
-        fun addResourceChildrenFromFilesystem() {
-            for (file in directory.listFiles() ?: emptyArray()) {
-                addChild(file, createStructure = true)
+        /**
+         * @param name without flags and extension
+         * @return file with given name and extension, present or removed (present ones are preferred)
+         */
+        fun getChildFile(name: String, extension: String): ResourceFile? {
+            synchronized(this) {
+                return childFilesByName.first(name) { it.extension == extension }
+                        ?: removedChildFilesByName.first(name) { it.extension == extension }
+            }
+        }
+
+        /** @return whether there currently is a file with given name (without flags and extension) */
+        fun hasFileNamed(name: String): Boolean {
+            synchronized(this) {
+                return childFilesByName.first(name) != null
+            }
+        }
+
+        /**
+         * Adds everything in the [directory] on the file system, recursively, skipping hidden files.
+         * @param pool on which subdirectories are scanned at the same time, scanned on this thread when null
+         */
+        fun addResourceChildrenFromFilesystem(pool: ForkJoinPool? = null) {
+            val scan = FilesystemScan(this, pool != null)
+            if (pool == null) {
+                scan.invoke()
+            } else {
+                pool.invoke(scan)
             }
         }
 
@@ -253,7 +382,7 @@ sealed class Resource {
         override fun toString(): String {
             val builder = StringBuilder()
             builder.append("Dir: ")
-            builder.append(stripWorkingDirectoryPath(directory.canonicalPath))
+            builder.append(stripWorkingDirectoryPath(directory.absolutePath))
             builder.append(" (")
             builder.append(name)
             for (flag in flags) {
@@ -264,8 +393,12 @@ sealed class Resource {
         }
 
         override fun applyTask(task: Task): Boolean {
+            if (!task.mayBeTriggeredIn(this)) {
+                return false
+            }
+
             var wasSuccessful = false
-            if (task.operate(this)) {
+            if (task.operateMeasured(this)) {
                 wasSuccessful = true
             }
 
@@ -293,6 +426,19 @@ sealed class Resource {
             return wasSuccessful
         }
 
+        /**
+         * Runs given task on itself and children, recursively, like [applyTask], but on multiple threads of [pool].
+         * Changes done to the tree by the task are applied only after all children of the directory are done,
+         * in the same order as [applyTask] would apply them, so the resulting tree does not depend on timing.
+         * @see Task.parallel
+         */
+        fun applyTaskInParallel(task: Task, pool: ForkJoinPool): Boolean {
+            val application = ParallelTaskApplication(task, this)
+            val result = pool.invoke(application)
+            application.journal.apply()
+            return result
+        }
+
         fun copyYourself(folder: File, useFolderAsRoot: Boolean = false, preferSymlinks:Boolean = false) {
             val myFolder = if (useFolderAsRoot) folder
             else {
@@ -337,27 +483,146 @@ sealed class Resource {
             file: File,
             override var parent: ResourceDirectory,
             override val name: String,
-            override val flags: MutableList<String>,
-            val extension: String) : Resource() {
+            flags: MutableList<String>,
+            val extension: String,
+            image: BufferedImage? = null) : Resource() {
 
-        var file: File = file
+        /** Copy of flags given in constructor, which keeps [ResourceDirectory.subtreeIndex] of parents up to date */
+        override val flags: FlagList = FlagList(this, flags)
+
+        /** Location of [file], which may not be written yet, when this file holds an [image]. */
+        internal var fileLocation: File = file
+            private set
+
+        /**
+         * Decoded content of this file, if a task has created it in memory.
+         * Tasks which read images should use it instead of decoding the [file].
+         * When it is set, [file] does not have to exist yet, it is written as PNG only when someone asks for it,
+         * which is usually only when it reaches the output.
+         */
+        var image: BufferedImage? = image
+            private set
+
+        /**
+         * Attributes of [fileLocation], read when the file was first verified to exist, null if not verified yet.
+         * Files of resources must not be changed in place, so they stay valid until [file] is set again.
+         */
+        @Volatile
+        private var attributes: BasicFileAttributes? = null
+
+        /** SHA-1 of the content of [file], computed by [TaskCache] when first needed */
+        @Volatile
+        internal var contentHash: ByteArray? = null
+
+        /**
+         * The file on disk. Setting it forgets the [image].
+         * The file is verified to exist on first access only, unless [StrictFileChecks] is set.
+         */
+        var file: File
             get() {
-                if (!field.exists() || !field.isFile) {
-                    error("This should not happen - given file does not exist. (${field.canonicalPath})")
+                ensureFileWritten()
+                return fileLocation
+            }
+            set(value) {
+                imageMemory?.untrack(imageSpill)
+                synchronized(this) {
+                    fileLocation = value
+                    attributes = null
+                    contentHash = null
+                    image = null
                 }
-                return field
             }
 
-        private constructor(file: File, parent: ResourceDirectory, parseName: Triple<String, MutableList<String>, String>) : this(file, parent, parseName.first, parseName.second, parseName.third)
+        /** Writes the [image] into [file], if it is not written yet, and verifies that the [file] exists, see [file] */
+        internal fun ensureFileWritten() {
+            if (attributes == null || StrictFileChecks.get()) {
+                verify(fileLocation)
+            }
+        }
+
+        private fun verify(file: File) {
+            // Other threads must not see it half-written
+            synchronized(this) {
+                val image = image
+                if (image != null && !file.exists()) {
+                    image.saveToFile(file, "png")
+                }
+                val attributes = try {
+                    Files.readAttributes(file.toPath(), BasicFileAttributes::class.java)
+                } catch (e: IOException) {
+                    null
+                }
+                if (attributes == null || !attributes.isRegularFile) {
+                    error("This should not happen - given file does not exist. (${file.canonicalPath})")
+                }
+                this.attributes = attributes
+            }
+        }
 
-        constructor(file: File, parent: ResourceDirectory) : this(file, parent, parseName(file.name, true))
+        /** Remembers [attributes] of the [file], which were just read by someone else, so that it does not have to be verified again */
+        internal fun verified(attributes: BasicFileAttributes) {
+            this.attributes = attributes
+        }
+
+        /** Size of [fileLocation] in bytes, without verifying or writing it, 0 if it does not exist */
+        internal val knownSize: Long
+            get() = attributes?.size() ?: fileLocation.length()
+
+        /** Size of the [file] in bytes, as seen when it was verified */
+        val fileSize: Long
+            get() {
+                ensureFileWritten()
+                return attributes!!.size()
+            }
+
+        /** Last modification time of the [file] in milliseconds, as seen when it was verified */
+        val fileLastModified: Long
+            get() {
+                ensureFileWritten()
+                return attributes!!.lastModifiedTime().toMillis()
+            }
+
+        /** Memory in which [image] is accounted, when over budget, the image is written to [file] and forgotten */
+        private val imageMemory = if (image != null) ImageMemory.current() else null
+
+        private val imageSpill = object : ImageMemory.Spillable {
+            override fun spill() {
+                synchronized(this@ResourceFile) {
+                    if (imageMemory!!.confirmEviction(this)) {
+                        val inMemory = this@ResourceFile.image
+                        val taskCache = OperationContext.current.get()?.janitor?.taskCache
+                        if (inMemory != null && taskCache != null && contentHash == null) {
+                            // Keeps the hash the same as when the image is in memory, see TaskCache.contentHash
+                            contentHash = taskCache.contentHash(inMemory)
+                        }
+                        ensureFileWritten()
+                        this@ResourceFile.image = null
+                    }
+                }
+            }
+        }
+
+        init {
+            if (image != null) {
+                imageMemory?.track(imageSpill, ImageMemory.sizeOf(image))
+            }
+        }
+
+        private constructor(file: File, parent: ResourceDirectory, parseName: Triple<String, MutableList<String>, String>, image: BufferedImage?) : this(file, parent, parseName.first, parseName.second, parseName.third, image)
+
+        /**
+         * @param file whose name is parsed into name, flags and extension
+         * @param image decoded content of the [file], which is then written only when needed, see [ResourceFile.image]
+         */
+        @JvmOverloads
+        constructor(file: File, parent: ResourceDirectory, image: BufferedImage? = null) : this(file, parent, parseName(file.name, true), image)
 
         /** Name without flags with extension */
         val simpleName: String = if (extension.isEmpty()) this.name else this.name + '.' + this.extension
 
         override fun toString(): String {
             val builder = StringBuilder()
-            builder.append(parent.stripWorkingDirectoryPath(file.canonicalPath))
+            builder.append(parent.stripWorkingDirectoryPath(fileLocation.absolutePath))
             builder.append(" (")
             builder.append(name)
             for (flag in flags) {
@@ -372,18 +637,10 @@ sealed class Resource {
             val createdFile = File(folder, simpleName)
 
             if (preferSymlinks) {
-                // Determine if symlinking is possible for this file
-                var parent = parent
-                while (parent.parent != parent) {
-                    parent = parent.parent
-                }
-
-                val myPath = file.canonicalPath
-                val resourceDirPath = parent.directory.canonicalPath
-                if (myPath.startsWith(resourceDirPath)) {
-                    // This file is still inside the resource directory, symlinking is meaningful!
+                val linkTarget = symlinkTarget()
+                if (linkTarget != null) {
                     try {
-                        Files.createSymbolicLink(createdFile.toPath(), file.canonicalFile.toPath())
+                        Files.createSymbolicLink(createdFile.toPath(), linkTarget)
                         return
                     } catch (ex:Exception) {
                         Log.warn("Failed to symlink $file to $createdFile, file will be copied", ex)
@@ -394,12 +651,119 @@ sealed class Resource {
             Files.copy(file.toPath(), createdFile.toPath())
         }
 
+        /**
+         * The root of the tree is canonical, so paths of its files are compared without resolving each of them.
+         * @param resourceDirPath canonical path of the resource directory, if known
+         * @return path to which the output should link to, when symlinks are preferred, or null if it should be copied
+         */
+        internal fun symlinkTarget(resourceDirPath: String = resourceRoot().directory.canonicalPath): Path? {
+            val absoluteFile = file.absoluteFile
+            if (absoluteFile.path.startsWith(resourceDirPath)) {
+                // This file is still inside the resource directory, symlinking is meaningful!
+                return absoluteFile.toPath()
+            }
+            return null
+        }
+
         /**
          * Runs given task on itself and children, recursively.
          * @return whether or not it succeeded at least once (on me or someone else)
          */
         override fun applyTask(task: Task): Boolean {
-            return task.operate(this)
+            return task.operateCached(this)
+        }
+    }
+
+    /**
+     * Counts of flags and extensions of all resources in a subtree of a directory, without the directory itself,
+     * so that tasks can skip subtrees without anything that triggers them. See [Task.triggerFlags].
+     */
+    internal class SubtreeIndex {
+        private val flags = HashMap<String, Int>()
+        private val extensions = HashMap<String, Int>()
+
+        @Synchronized
+        fun addFlag(flag: String, delta: Int) {
+            add(flags, flag, delta)
+        }
+
+        /** Adds [resource] and everything in it, or removes it when [delta] is -1. */
+        fun add(resource: Resource, delta: Int) {
+            when (resource) {
+                is ResourceFile -> synchronized(this) {
+                    for (flag in resource.flags) {
+                        add(flags, flag, delta)
+                    }
+                    add(extensions, resource.extension, delta)
+                }
+                is ResourceDirectory -> {
+                    val subtree = resource.subtreeIndex
+                    val subtreeFlags: Map<String, Int>
+                    val subtreeExtensions: Map<String, Int>
+                    synchronized(subtree) {
+                        subtreeFlags = HashMap(subtree.flags)
+                        subtreeExtensions = HashMap(subtree.extensions)
+                    }
+                    synchronized(this) {
+                        for (flag in resource.flags) {
+                            add(flags, flag, delta)
+                        }
+                        for ((flag, count) in subtreeFlags) {
+                            add(flags, flag, delta * count)
+                        }
+                        for ((extension, count) in subtreeExtensions) {
+                            add(extensions, extension, delta * count)
+                        }
+                    }
+                }
+            }
+        }
+
+        @Synchronized
+        fun containsAnyFlag(of: Set<String>): Boolean = of.any { it in flags }
+
+        @Synchronized
+        fun containsAnyExtension(of: Set<String>): Boolean = of.any { it in extensions }
+
+        private fun add(counts: HashMap<String, Int>, key: String, delta: Int) {
+            val count = (counts[key] ?: 0) + delta
+            if (count == 0) {
+                counts.remove(key)
+            } else {
+                counts[key] = count
+            }
+        }
+    }
+
+    /** Multimap of resources by their [name], which can't change. */
+    private class NameIndex<R : Resource> {
+        private val index = HashMap<String, ArrayList<R>>()
+
+        fun add(resource: R) {
+            index.getOrPut(resource.name) { ArrayList(1) }.add(resource)
+        }
+
+        fun remove(resource: R) {
+            val resources = index[resource.name] ?: return
+            for (i in resources.indices) {
+                if (resources[i] === resource) {
+                    resources.removeAt(i)
+                    break
+                }
+            }
+            if (resources.isEmpty()) {
+                index.remove(resource.name)
+            }
+        }
+
+        inline fun first(name: String, filter: (R) -> Boolean = { true }): R? {
+            val resources = index[name] ?: return null
+            for (resource in resources) {
+                if (filter(resource)) {
+                    return resource
+                }
+            }
+            return null
         }
     }
 
@@ -408,28 +772,149 @@ sealed class Resource {
          * Parse file/directory name into name, flags and extension, if requested and present
          */
         fun parseName(fileName: String, withExtension: Boolean): Triple<String, MutableList<String>, String> {
-            val name = StringBuilder()
             val flags = ArrayList<String>()
-            val extension: String
 
-            val nameParts = fileName.split('.')
-            name.append(nameParts.first())
-            for (namePart in nameParts.drop(1).dropLast(if (withExtension) 1 else 0)) {
-                if (namePart.length > 1 && namePart.startsWith('"') && namePart.endsWith('"')) {
+            // Single pass over the name, without splitting it first
+            var end = fileName.length
+            var extension = ""
+            if (withExtension) {
+                val extensionStart = fileName.lastIndexOf('.')
+                if (extensionStart != -1) {
+                    extension = fileName.substring(extensionStart + 1).toLowerCase()
+                    end = extensionStart
+                }
+            }
+
+            var partEnd = fileName.indexOf('.').let { if (it == -1 || it > end) end else it }
+            val name = StringBuilder(partEnd)
+            name.append(fileName, 0, partEnd)
+            while (partEnd < end) {
+                val partStart = partEnd + 1
+                partEnd = fileName.indexOf('.', partStart).let { if (it == -1 || it > end) end else it }
+                if (partEnd - partStart > 1 && fileName[partStart] == '"' && fileName[partEnd - 1] == '"') {
                     // Verbatim name part
-                    name.append('.').append(namePart, 1, namePart.length - 2)
+                    name.append('.').append(fileName, partStart + 1, partEnd - 1)
                 } else {
                     // Flag
-                    flags.add(namePart)
+                    flags.add(fileName.substring(partStart, partEnd))
                 }
             }
 
-            extension = if (withExtension && nameParts.size >= 2) nameParts.last().toLowerCase() else ""
             return Triple(name.toString(), flags, extension)
         }
     }
 }
 
+/**
+ * Operation of a parallel task on a single resource and its children, with the changes of the tree deferred to [journal].
+ *
+ * @param deferAll if false, changes are applied once the children of their directory are done,
+ * if true, all changes stay in the [journal]
+ */
+internal class ParallelTaskApplication(private val task: Task, private val resource: Resource,
+                                       private val deferAll: Boolean = false) : RecursiveTask<Boolean>() {
+
+    val journal = TreeJournal { true }
+
+    override fun compute(): Boolean {
+        if (resource is Resource.ResourceDirectory && !task.mayBeTriggeredIn(resource)) {
+            return false
+        }
+
+        var result = TreeJournal.recordInto(journal) {
+            when (resource) {
+                is Resource.ResourceFile -> task.operateCached(resource)
+                is Resource.ResourceDirectory -> task.operateMeasured(resource)
+            }
+        }
+
+        if (resource is Resource.ResourceDirectory) {
+            if (!deferAll) {
+                // Children are processed after the directory itself, so its own changes must be visible to them,
+                // like when running sequentially. Nobody else touches them.
+                journal.applyTo(resource)
+            }
+
+            val applications = ArrayList<ParallelTaskApplication>()
+            synchronized(resource) {
+                for (file in resource.files) {
+                    applications.add(ParallelTaskApplication(task, file, deferAll))
+                }
+                for (directory in resource.directories) {
+                    applications.add(ParallelTaskApplication(task, directory, deferAll))
+                }
+            }
+
+            ForkJoinTask.invokeAll(applications)
+
+            for (application in applications) {
+                if (deferAll) {
+                    journal.events.addAll(application.journal.events)
+                } else {
+                    application.journal.apply()
+                }
+                if (application.join()) {
+                    result = true
+                }
+            }
+        }
+        return result
+    }
+}
+
+/**
+ * Scan of a [directory] on the file system, which adds its content into it.
+ * Subdirectories are scanned first, while they are not attached yet, then everything is added at once,
+ * in the order of names, like when adding the files one by one.
+ *
+ * @param parallel whether to scan subdirectories at the same time, in the pool of this task
+ */
+internal class FilesystemScan(private val directory: Resource.ResourceDirectory, private val parallel: Boolean) : RecursiveAction() {
+
+    override fun compute() {
+        val files = ArrayList<Resource.ResourceFile>()
+        val scans = ArrayList<FilesystemScan>()
+        try {
+            // Order of the listing depends on the file system, sorted order makes the results reproducible
+            val paths = Files.newDirectoryStream(directory.directory.toPath()).use { it.sorted() }
+            for (path in paths) {
+                if (path.fileName.toString().startsWith('.')) continue
+                // One stat per entry, instead of separate isFile, isDirectory and exists
+                val attributes = try {
+                    Files.readAttributes(path, BasicFileAttributes::class.java)
+                } catch (e: IOException) {
+                    Log.warn("ResourceDirectory", "Child not added, because it doesn't exist. (\"$path\")")
+                    continue
+                }
+                if (attributes.isRegularFile) {
+                    val file = Resource.ResourceFile(path.toFile(), directory)
+                    file.verified(attributes)
+                    files.add(file)
+                } else if (attributes.isDirectory) {
+                    scans.add(FilesystemScan(Resource.ResourceDirectory(path.toFile(), directory), parallel))
+                }
+            }
+        } catch (e: IOException) {
+            Log.warn("ResourceDirectory", "Children of $directory not added, because it can't be listed", e)
+        }
+
+        if (parallel) {
+            ForkJoinTask.invokeAll(scans)
+        } else {
+            for (scan in scans) {
+                scan.invoke()
+            }
+        }
+
+        for (file in files) {
+            directory.addChild(file)
+        }
+        for (scan in scans) {
+            directory.addChild(scan.directory)
+        }
+    }
+}
+
 fun Resource.ResourceFile.isBitmapImage(): Boolean = extension == "png" || extension == "jpg" || extension == "jpeg" || extension == "gif" || extension == "bmp"
 fun Resource.ResourceFile.isVectorImage(): Boolean = extension == "svg" || extension == "svgz"
 fun Resource.ResourceFile.isImage(): Boolean = isBitmapImage() || isVectorImage()
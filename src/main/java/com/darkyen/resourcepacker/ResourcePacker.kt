@@ -3,10 +3,10 @@
 
 package com.darkyen.resourcepacker
 
-import com.badlogic.gdx.utils.GdxNativesLoader
 import com.darkyen.resourcepacker.tasks.DefaultTasks
 import com.esotericsoftware.minlog.Log
 import java.io.File
+import java.util.concurrent.ForkJoinPool
 
 /*
  * Entry-point for the Resource Packer
@@ -17,67 +17,170 @@ val PreferSymlinks = SettingKey("PreferSymlinks", false,
                 "This is possible only on systems that support symlinks and only for files, " +
                 "that still after packing point into the original resources directory.")
 
+val ParallelTasks = SettingKey("ParallelTasks", false,
+        "Tasks which support it (see Task.parallel) will process files on all available processors " +
+                "and local tasks (see Task.local) will process independent directories at the same time. " +
+                "Results are the same as when running on single thread.")
+
+val StrictFileChecks = SettingKey("StrictFileChecks", false,
+        "Check that the file of a resource exists each time it is accessed, instead of only the first time, " +
+                "and do not remember sizes and hashes of files. For debugging tasks which change files of resources in place.")
+
 /**
  * Launches all [Task]s, one after another.
+ * Multiple operations may run at the same time, on different threads, each with its own [settings].
  */
 @JvmOverloads
 fun packResources(from: File, to: File,
                   settings: List<Setting<*>> = emptyList(),
                   tasks: List<Task> = DefaultTasks,
                   workingRootProvider: WorkingRootProvider = TemporaryWorkingRootProvider) {
-    GdxNativesLoader.load()
+    packResources(from, to, tasks, workingRootProvider, OperationContext(settings))
+}
 
-    /**
-     * Does the actual work. Should be called only by launcher that has created a necessary context for tasks.
-     */
-    val startTime = System.currentTimeMillis()
-    val root = createTree(from) ?: return
-    Log.info("ResourcePacker", "Starting packing operation from \"${from.canonicalPath}\" to \"${to.canonicalPath}\"")
+/**
+ * Does the actual work of [packResources], in given [context].
+ * @return false if there was nothing to pack
+ */
+internal fun packResources(from: File, to: File, tasks: List<Task>,
+                           workingRootProvider: WorkingRootProvider, context: OperationContext): Boolean {
+    return context.bind {
+        val startTime = System.currentTimeMillis()
+        val root = createTree(from) ?: return false
+        Log.info("ResourcePacker", "Starting packing operation from \"${from.canonicalPath}\" to \"${to.canonicalPath}\"")
+
+        if (root.flags.isNotEmpty()) Log.warn("ResourcePacker", "Flags of root will not be processed.")
+
+        val janitor = OperationJanitor(workingRootProvider)
+        context.janitor = janitor
+        try {
+            if (Incremental.get()) {
+                janitor.enableTaskCache(context.settings)
+            }
+            val timingReport = TimingReport.get()
+            if (timingReport != null) {
+                janitor.taskTimings = TaskTimings()
+            }
 
-    if (root.flags.isNotEmpty()) Log.warn("ResourcePacker", "Flags of root will not be processed.")
+            val syncOutput = SyncOutput.get()
+            prepareOutputDirectory(janitor, to, clear = !syncOutput)
 
-    val janitor = OperationJanitor(workingRootProvider)
+            runTasks(root, tasks, janitor)
 
-    prepareOutputDirectory(janitor, to)
+            val writer = OutputWriter(to, janitor)
 
-    for (task in tasks) {
-        task.initializeForOperation(janitor)
-    }
+            val outputStartTime = System.nanoTime()
+            if (syncOutput) {
+                writer.sync(root)
+            } else {
+                writer.write(collectOutputs(root))
+            }
 
-    for (setting in settings) {
-        setting.activate()
+            val timings = janitor.taskTimings
+            if (timings != null && timingReport != null) {
+                timings.outputNanos = System.nanoTime() - outputStartTime
+                timings.writeReport(timingReport)
+                timings.logSummary(TimingSummarySize.get())
+                Log.info("ResourcePacker", "Timing report written to \"${timingReport.path}\"")
+            }
+        } finally {
+            // The daemon keeps running when a request fails, its working root must not be left behind
+            janitor.dispose()
+        }
+        Log.info("ResourcePacker", "Packing operation done (in " + "%.2f".format((System.currentTimeMillis() - startTime) / 1000f) + "s)")
+        true
     }
+}
 
+/**
+ * Runs all [tasks] on the virtual [root], one after another, or at the same time where possible (see [ParallelTasks]).
+ * Must run in [OperationContext] of the [janitor].
+ * @param sharedPool pool of the context to use for [ParallelTasks], it is not shut down, new pool is created when null
+ */
+internal fun runTasks(root: Resource.ResourceDirectory, tasks: List<Task>, janitor: OperationJanitor, sharedPool: ForkJoinPool? = null) {
     for (task in tasks) {
-        if (task.repeating) {
-            var times = 0
-            while (task.operate()) {
-                times += 1
-            }
-            while (root.applyTask(task)) {
-                logVirtualTreeAfter(task, root)
-                times += 1
+        task.initializeForOperation()
+    }
+
+    val context = OperationContext.get()
+    val pool = if (ParallelTasks.get()) sharedPool ?: context.newForkJoinPool() else null
+    context.pool = pool
+    try {
+        val timings = janitor.taskTimings
+        fun applyTask(task: Task): Boolean {
+            val startTime = System.nanoTime()
+            val result = if (pool != null && task.parallel) {
+                root.applyTaskInParallel(task, pool)
+            } else {
+                root.applyTask(task)
             }
-            Log.debug("ResourcePacker", "Task " + task.Name + " run " + times + " times")
-        } else {
-            val subMessage = if (task.operate()) "(did run in operate(void))" else "(did not run in operate(void))"
-            if (root.applyTask(task)) {
-                logVirtualTreeAfter(task, root)
-                Log.debug("ResourcePacker", "Task " + task.Name + " finished and run " + subMessage)
-            } else Log.debug("ResourcePacker", "Task " + task.Name + " finished but didn't run " + subMessage)
+            timings?.pass(task, System.nanoTime() - startTime)
+            return result
         }
-    }
 
-    val preferSymlinks = PreferSymlinks.get()
+        var taskIndex = 0
+        while (taskIndex < tasks.size) {
+            val task = tasks[taskIndex]
+            if (pool != null) {
+                var segmentEnd = taskIndex
+                while (segmentEnd < tasks.size && tasks[segmentEnd].local && !tasks[segmentEnd].repeating) {
+                    segmentEnd++
+                }
+                if (segmentEnd - taskIndex >= 2) {
+                    val segment = tasks.subList(taskIndex, segmentEnd)
+                    val subMessages = segment.map { if (it.operateMeasured()) "(did run in operate(void))" else "(did not run in operate(void))" }
+                    val startTime = System.nanoTime()
+                    val results = TaskScheduler(root, segment, pool).run()
+                    timings?.pass(segment, System.nanoTime() - startTime)
+                    for (i in segment.indices) {
+                        if (results[i]) {
+                            Log.debug("ResourcePacker", "Task " + segment[i].Name + " finished and run " + subMessages[i])
+                        } else Log.debug("ResourcePacker", "Task " + segment[i].Name + " finished but didn't run " + subMessages[i])
+                    }
+                    if (results.any { it }) {
+                        logVirtualTreeAfter(segment.last(), root)
+                    }
+                    taskIndex = segmentEnd
+                    continue
+                }
+            }
 
-    for (setting in settings) {
-        setting.reset()
+            if (task.repeating) {
+                var times = 0
+                while (task.operateMeasured()) {
+                    times += 1
+                }
+                val worklist = TreeWorklist()
+                context.worklist = worklist
+                try {
+                    if (applyTask(task)) {
+                        times += 1
+                    }
+                    val startTime = System.nanoTime()
+                    times += worklist.runUntilFixedPoint(task)
+                    timings?.pass(task, System.nanoTime() - startTime)
+                } finally {
+                    context.worklist = null
+                }
+                if (times > 0) {
+                    logVirtualTreeAfter(task, root)
+                }
+                Log.debug("ResourcePacker", "Task " + task.Name + " run " + times + " times")
+            } else {
+                val subMessage = if (task.operateMeasured()) "(did run in operate(void))" else "(did not run in operate(void))"
+                if (applyTask(task)) {
+                    logVirtualTreeAfter(task, root)
+                    Log.debug("ResourcePacker", "Task " + task.Name + " finished and run " + subMessage)
+                } else Log.debug("ResourcePacker", "Task " + task.Name + " finished but didn't run " + subMessage)
+            }
+            taskIndex++
+        }
+    } finally {
+        context.pool = null
+        if (pool !== sharedPool) {
+            pool?.shutdown()
+        }
     }
-
-    root.copyYourself(to, useFolderAsRoot = true, preferSymlinks = preferSymlinks)
-
-    janitor.dispose()
-    Log.info("ResourcePacker", "Packing operation done (in " + "%.2f".format((System.currentTimeMillis() - startTime) / 1000f) + "s)")
 }
 
 private fun createTree(root: File): Resource.ResourceDirectory? {
@@ -85,13 +188,23 @@ private fun createTree(root: File): Resource.ResourceDirectory? {
         Log.error("ResourcePacker", "${root.canonicalPath} is not a directory.")
         return null
     }
-    val result = Resource.ResourceDirectory(root, null, root.canonicalPath)
-    result.addResourceChildrenFromFilesystem()
+    // Canonical root makes paths of all resources canonical, without resolving each of them
+    val canonicalRoot = root.canonicalFile
+    val result = Resource.ResourceDirectory(canonicalRoot, null, canonicalRoot.path)
+    // Scanning is mostly waiting for the file system, so subdirectories are always scanned at the same time
+    val pool = OperationContext.get().newForkJoinPool()
+    try {
+        result.addResourceChildrenFromFilesystem(pool)
+    } finally {
+        pool.shutdown()
+    }
     return result
 }
 
-private fun prepareOutputDirectory(janitor: OperationJanitor, to: File) {
-    janitor.clearFolder(to)
+internal fun prepareOutputDirectory(janitor: OperationJanitor, to: File, clear: Boolean = true) {
+    if (clear) {
+        janitor.clearFolder(to)
+    }
     if (!to.exists() && !to.mkdirs()) {
         Log.warn("ResourcePacker", "Output directory at \"${to.canonicalPath}\" could not be created. Assuming it's fine.")
     }
@@ -13,33 +13,45 @@ package com.darkyen.resourcepacker
  * }}}
  * @author Darkyen
  */
-class SettingKey<T>(val name: String, private val defaultValue: T, val help: String = "") {
+class SettingKey<T>(val name: String, internal val defaultValue: T, val help: String = "") {
 
     infix fun to(value: T): Setting<T> {
         return Setting(this, value)
     }
 
-    internal var activeValue: T = defaultValue
-
-    fun get(): T = activeValue
+    /**
+     * @return value of this setting in the packing operation running on this thread,
+     * or the default value when called outside of packing operation
+     */
+    fun get(): T {
+        val context = OperationContext.current.get() ?: return defaultValue
+        return context.valueOf(this)
+    }
 
+    /** Settings are no longer global, there is nothing to reset. */
+    @Deprecated("Settings are given to packResources(settings = ...) and are valid only in its operation")
     fun reset() {
-        activeValue = defaultValue
+        throw UnsupportedOperationException("Settings are given to packResources(settings = ...) and are valid only in its operation")
     }
 }
 
 /**
- * Created by calling [[SettingKey.:=()]] and fed into the PackingOperation
+ * Created by calling [[SettingKey.:=()]] and fed into the PackingOperation.
+ * Settings are valid only in the operation they are given to, other operations may run with different settings at the same time.
  *
  * @author Darkyen
  */
 class Setting<T>(val key: SettingKey<T>, val value: T) {
 
+    /** Settings are no longer global, give them to the packing operation instead. */
+    @Deprecated("Settings are given to packResources(settings = ...) and are valid only in its operation")
     fun activate() {
-        key.activeValue = value
+        throw UnsupportedOperationException("Settings are given to packResources(settings = ...) and are valid only in its operation")
     }
 
+    /** Settings are no longer global, there is nothing to reset. */
+    @Deprecated("Settings are given to packResources(settings = ...) and are valid only in its operation")
     fun reset() {
-        key.reset()
+        throw UnsupportedOperationException("Settings are given to packResources(settings = ...) and are valid only in its operation")
     }
-}
\ No newline at end of file
+}
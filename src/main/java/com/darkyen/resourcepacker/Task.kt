@@ -11,18 +11,27 @@ import java.io.File
  * - If you don't need multiple instances, implement as scala `object`.<br>
  * - Override one of the operate() methods, based on what you want to do.<br>
  * - If you keep any state between any operate() invocations, override prepare() method and reset it there. <br>
+ * - Task instances are shared by packing operations which run at the same time, so such state must be thread-safe. <br>
  *
  * @author Darkyen
  */
 abstract class Task {
 
-    private lateinit var janitor: OperationJanitor
+    /** Janitor of the packing operation which runs on this thread, tasks are shared by all operations */
+    private val janitor: OperationJanitor
+        get() = OperationContext.get().janitor
 
-    fun initializeForOperation(janitor: OperationJanitor) {
-        this.janitor = janitor
+    fun initializeForOperation() {
         prepare()
     }
 
+    /** Tasks now get the janitor from the packing operation which runs them, see [packResources]. */
+    @Deprecated("Janitor comes from the packing operation", ReplaceWith("initializeForOperation()"))
+    @Suppress("UNUSED_PARAMETER")
+    fun initializeForOperation(janitor: OperationJanitor) {
+        initializeForOperation()
+    }
+
     val Name: String = javaClass.simpleName
 
     /**
@@ -89,7 +98,153 @@ abstract class Task {
      */
     open fun operate(): Boolean = false
 
-    /** Repeating tasks will run over and over until they don't success anymore on anything. */
+    /**
+     * Repeating tasks will run over and over until they don't success anymore on anything.
+     * After the first pass over the whole tree, they are run only on resources which have changed since, see [TreeWorklist].
+     */
     open val repeating = false
 
+    /**
+     * Parallel tasks may be run on multiple files and directories at once, when [ParallelTasks] is enabled.
+     * Their `operate(file)` and `operate(directory)` must not touch anything but the given resource and its parent
+     * and must not depend on changes of the tree done by other invocations in the same run.
+     * Changes of the tree done by parallel task are applied later, but in the same order as if run sequentially.
+     */
+    open val parallel = false
+
+    /**
+     * Local tasks work only with the given resource, its subtree, flags of its parents and children of its parent.
+     * When [ParallelTasks] is enabled, consecutive local tasks are run on each directory of the root at the same time,
+     * so that each directory has to wait only for tasks done in it. Repeating tasks are never run like that.
+     */
+    open val local = false
+
+    /**
+     * Extensions of files this task reads, changes or removes, or null if it may work with anything, including directories.
+     * Local parallel tasks which declare this and [produces] may run in the same directory at the same time,
+     * if neither of them works with what the other one works with or creates.
+     */
+    open val consumes: Set<String>? = null
+
+    /** Extensions of files this task may create, or null if anything. See [consumes]. */
+    open val produces: Set<String>? = null
+
+    /**
+     * Flags which trigger this task, or null if it may do something with any resource.
+     * When set, `operate(file)` and `operate(directory)` are called only with resources which have at least one of them
+     * and directories without such resources in their subtree are skipped altogether.
+     */
+    open val triggerFlags: Set<String>? = null
+
+    /**
+     * Extensions which trigger this task, or null if it may do something with any file.
+     * When set, `operate(file)` is called only with files which have one of them and `operate(directory)` is not called at all.
+     * @see triggerFlags
+     */
+    open val triggerExtensions: Set<String>? = null
+
+    /** [triggerFlags] as interned flags, computed lazily, because [triggerFlags] is overridden */
+    private val triggerFlagTokens: List<Flag>? by lazy {
+        triggerFlags?.map { Flag.of(it) }
+    }
+
+    /** @return whether [triggerFlags] and [triggerExtensions] allow `operate(file)` */
+    internal fun isTriggeredBy(file: Resource.ResourceFile): Boolean {
+        val flags = triggerFlagTokens
+        if (flags != null && !file.flags.hasAny(flags)) {
+            return false
+        }
+        val extensions = triggerExtensions
+        return extensions == null || file.extension in extensions
+    }
+
+    /** @return whether [triggerFlags] and [triggerExtensions] allow `operate(directory)` */
+    internal fun isTriggeredBy(directory: Resource.ResourceDirectory): Boolean {
+        if (triggerExtensions != null) {
+            return false
+        }
+        val flags = triggerFlagTokens
+        return flags == null || directory.flags.hasAny(flags)
+    }
+
+    /** @return whether the [directory] or anything in it may trigger this task */
+    internal fun mayBeTriggeredIn(directory: Resource.ResourceDirectory): Boolean {
+        val flags = triggerFlags
+        val extensions = triggerExtensions
+        if (flags == null && extensions == null || isTriggeredBy(directory)) {
+            return true
+        }
+        val index = directory.subtreeIndex
+        return (flags == null || index.containsAnyFlag(flags)) && (extensions == null || index.containsAnyExtension(extensions))
+    }
+
+    /**
+     * Version of results of this task, for [Incremental] packing.
+     * Tasks whose `operate(ResourceFile)` depends only on the file, its parents and settings,
+     * and which only remove the file and add new files next to it, may return non-negative number here,
+     * so that their results can be cached.
+     * Change the number whenever the task starts to produce different results.
+     */
+    open val cacheVersion: Int = -1
+
+    /**
+     * Add any additional inputs of `operate(file)`, that are not covered by the default cache key, to the [key].
+     * @see cacheVersion
+     */
+    open fun cacheDependencies(file: Resource.ResourceFile, key: TaskCache.Key) {
+    }
+
+    /**
+     * Creates a new unique directory and fills it using [produce].
+     * When [Incremental] packing is enabled and this task is cacheable (see [cacheVersion]),
+     * result may come from the cache instead, if previous run had the same inputs, as added to key by [inputs].
+     */
+    fun newCachedFolder(inputs: (TaskCache.Key) -> Unit, produce: (File) -> Unit): File {
+        val cache = janitor.taskCache
+        if (cache == null || cacheVersion < 0) {
+            val folder = newFolder()
+            produce(folder)
+            return folder
+        }
+        val key = cache.Key(this)
+        inputs(key)
+        return cache.cachedFolder(this, key, produce)
+    }
+
+    /**
+     * @return file in which this task may keep its state between [Incremental] runs under given [name],
+     * null when there is no persistent cache, see [TaskCache.stateFile]
+     */
+    fun stateFile(name: String): File? {
+        return janitor.taskCache?.stateFile(this, name)
+    }
+
+    /** Runs [operate] on the [file], if it triggers this task, through the [TaskCache] and [TaskTimings], when enabled. */
+    internal fun operateCached(file: Resource.ResourceFile): Boolean {
+        if (!isTriggeredBy(file)) return false
+        val timings = janitor.taskTimings ?: return operateCachedUnmeasured(file)
+        return timings.measure(this, file) { operateCachedUnmeasured(file) }
+    }
+
+    private fun operateCachedUnmeasured(file: Resource.ResourceFile): Boolean {
+        val cache = janitor.taskCache
+        if (cache == null || cacheVersion < 0) {
+            return operate(file)
+        }
+        return cache.operate(this, file)
+    }
+
+    /** Runs [operate] on the [directory], if it triggers this task, through [TaskTimings], when enabled. */
+    internal fun operateMeasured(directory: Resource.ResourceDirectory): Boolean {
+        if (!isTriggeredBy(directory)) return false
+        val timings = janitor.taskTimings ?: return operate(directory)
+        return timings.measure(this, directory) { operate(directory) }
+    }
+
+    /** Runs [operate], through [TaskTimings], when enabled. */
+    internal fun operateMeasured(): Boolean {
+        val timings = janitor.taskTimings ?: return operate()
+        return timings.measure(this, null) { operate() }
+    }
+
 }
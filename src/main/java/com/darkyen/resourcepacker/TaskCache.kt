@@ -0,0 +1,513 @@
+package com.darkyen.resourcepacker
+
+import com.darkyen.resourcepacker.image.ImageMemory
+import com.darkyen.resourcepacker.image.loadImageData
+import com.darkyen.resourcepacker.image.saveImageData
+import com.esotericsoftware.minlog.Log
+import java.awt.image.BufferedImage
+import java.io.*
+import java.nio.ByteBuffer
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.security.MessageDigest
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+val Incremental = SettingKey("Incremental", false,
+        "Instructs packing operation to cache results of tasks that support it (see Task.cacheVersion) " +
+                "and to reuse them in subsequent runs when their inputs did not change. " +
+                "Requires WorkingRootProvider which supports persistent cache, such as LocalWorkingRootProvider.")
+
+/**
+ * Persistent cache of [Task] results, used for incremental packing.
+ *
+ * Each cached invocation is keyed by the content hash of its input file, its name, flags and extension,
+ * names and flags of all its parents, [Task.cacheVersion] and by the settings of the operation.
+ * Results are stored as a list of produced files, which are replayed into the virtual tree on a hit.
+ * Produced files which are still only images in memory are stored as their pixels and replayed into memory again,
+ * so that they are not encoded and written on the way.
+ *
+ * Content hashes are remembered by file size and modification time, so unchanged inputs cost only a file stat.
+ *
+ * @author Darkyen
+ */
+class TaskCache(private val cacheRoot: File, private val janitor: OperationJanitor, settings: List<Setting<*>>) {
+
+    private val settingsKey: String = settings.map { "${it.key.name}=${it.value}" }.sorted().joinToString("\n")
+
+    private val hashIndexFile = File(cacheRoot, "hashes")
+    private val hashIndex = ConcurrentHashMap<String, HashIndexEntry>()
+    @Volatile
+    private var hashIndexDirty = false
+
+    private val hits = AtomicInteger()
+    private val misses = AtomicInteger()
+
+    init {
+        cacheRoot.mkdirs()
+        loadHashIndex()
+    }
+
+    /**
+     * Runs [Task.operate] on given file, or replays its cached result.
+     */
+    fun operate(task: Task, file: Resource.ResourceFile): Boolean {
+        val key = Key(task)
+        key.add(file)
+        task.cacheDependencies(file, key)
+        val entryFolder = entryFolder(task, key)
+
+        val replayed = replay(file, entryFolder)
+        if (replayed != null) {
+            hits.incrementAndGet()
+            return replayed
+        }
+
+        // When running in parallel, there already is a journal
+        val outerJournal = TreeJournal.active.get()
+        val journal = outerJournal ?: TreeJournal()
+        val firstEvent = journal.events.size
+        val result: Boolean
+        if (outerJournal == null) {
+            TreeJournal.active.set(journal)
+        }
+        try {
+            result = task.operate(file)
+        } finally {
+            if (outerJournal == null) {
+                TreeJournal.active.remove()
+            }
+        }
+
+        store(task, file, journal.events.subList(firstEvent, journal.events.size), result, entryFolder)
+        return result
+    }
+
+    /**
+     * Returns a folder with files produced by [produce].
+     * If there is a cached folder for given key, [produce] is not called and a copy of the cached folder is returned instead.
+     * Useful for tasks operating on directories, that can't be cached by [operate].
+     */
+    fun cachedFolder(task: Task, key: Key, produce: (File) -> Unit): File {
+        val entryFolder = entryFolder(task, key)
+        val cachedOutput = File(entryFolder, "output")
+        val result = janitor.createTempDirectory(task.Name)
+        if (cachedOutput.isDirectory) {
+            copyFolder(cachedOutput, result)
+            hits.incrementAndGet()
+            Log.debug(LOG, "Replayed ${task.Name} from $entryFolder")
+            return result
+        }
+        misses.incrementAndGet()
+
+        produce(result)
+
+        try {
+            val tempEntry = newTempEntry(entryFolder)
+            copyFolder(result, File(tempEntry, "output"))
+            commitEntry(tempEntry, entryFolder)
+        } catch (e: IOException) {
+            Log.warn(LOG, "Failed to store result of ${task.Name} in cache", e)
+        }
+        return result
+    }
+
+    /**
+     * Returns a file in which [task] may keep its state between runs, under given [name], such as what it did the last time.
+     * Unlike cached results, the state is not keyed by inputs, the task must check whether it still applies.
+     * The file does not have to exist.
+     */
+    fun stateFile(task: Task, name: String): File {
+        val digest = MessageDigest.getInstance("SHA-1")
+        digest.update(name.toByteArray(Charsets.UTF_8))
+        return File(File(File(cacheRoot, "state"), task.Name), hex(digest.digest()))
+    }
+
+    /** Returns the content hash of given file, possibly from cache. */
+    fun contentHash(file: File): ByteArray {
+        return contentHash(file, file.length(), file.lastModified())
+    }
+
+    /**
+     * Returns the content hash of given resource, remembered by the resource, unless [StrictFileChecks] is set.
+     * Resources which hold their [Resource.ResourceFile.image] are hashed by its pixels, so that it does not have to be written.
+     */
+    fun contentHash(file: Resource.ResourceFile): ByteArray {
+        val strict = StrictFileChecks.get()
+        if (!strict) {
+            file.contentHash?.let { return it }
+        }
+        val image = file.image
+        val hash = if (image != null) contentHash(image) else contentHash(file.file, file.fileSize, file.fileLastModified)
+        if (!strict) {
+            file.contentHash = hash
+        }
+        return hash
+    }
+
+    /** Returns the hash of size and pixels of the image. */
+    fun contentHash(image: BufferedImage): ByteArray {
+        val digest = MessageDigest.getInstance("SHA-1")
+        val width = image.width
+        val row = IntArray(width)
+        val bytes = ByteBuffer.allocate(maxOf(width, 2) * 4)
+        bytes.putInt(width).putInt(image.height)
+        digest.update(bytes.array(), 0, 8)
+        for (y in 0 until image.height) {
+            image.getRGB(0, y, width, 1, row, 0, width)
+            bytes.clear()
+            bytes.asIntBuffer().put(row)
+            digest.update(bytes.array(), 0, width * 4)
+        }
+        return digest.digest()
+    }
+
+    private fun contentHash(file: File, size: Long, modified: Long): ByteArray {
+        val path = file.absolutePath
+        val cached = hashIndex[path]
+        if (cached != null && cached.size == size && cached.modified == modified) {
+            return cached.hash
+        }
+
+        val digest = MessageDigest.getInstance("SHA-1")
+        FileInputStream(file).use { input ->
+            val buffer = ByteArray(64 * 1024)
+            while (true) {
+                val read = input.read(buffer)
+                if (read < 0) break
+                digest.update(buffer, 0, read)
+            }
+        }
+        val hash = digest.digest()
+        if (!path.startsWith(janitor.workingRoot.absolutePath)) {
+            // Temporary files are not worth remembering
+            hashIndex[path] = HashIndexEntry(size, modified, hash)
+            hashIndexDirty = true
+        }
+        return hash
+    }
+
+    fun dispose() {
+        if (hashIndexDirty) {
+            saveHashIndex()
+        }
+        Log.info(LOG, "Incremental cache: $hits hits, $misses misses")
+    }
+
+    private fun replay(file: Resource.ResourceFile, entryFolder: File): Boolean? {
+        val manifest = File(entryFolder, ManifestName)
+        if (!manifest.isFile) return null
+
+        try {
+            DataInputStream(BufferedInputStream(FileInputStream(manifest))).use { input ->
+                if (input.readInt() != ManifestVersion) return null
+                val result = input.readBoolean()
+                val eventCount = input.readInt()
+                val parent = file.parent
+                for (i in 0 until eventCount) {
+                    if (input.readBoolean()) {
+                        parent.removeChild(file)
+                    } else {
+                        val name = input.readUTF()
+                        val extension = input.readUTF()
+                        val flags = ArrayList<String>()
+                        for (f in 0 until input.readInt()) {
+                            flags.add(input.readUTF())
+                        }
+                        val blob = File(entryFolder, input.readUTF())
+                        val copy = janitor.createTempFile("TaskCache", name, extension.takeIf { it.isNotEmpty() })
+                        if (input.readBoolean()) {
+                            // Image stays in memory, like when it was created
+                            val width = input.readInt()
+                            val height = input.readInt()
+                            val type = input.readInt()
+                            val memory = ImageMemory.current()
+                            val bytes = ImageMemory.sizeOf(width, height)
+                            memory?.reserve(bytes)
+                            try {
+                                val image = loadImageData(blob, width, height, type)
+                                parent.addChild(Resource.ResourceFile(copy, parent, name, flags, extension, image))
+                            } finally {
+                                memory?.release(bytes)
+                            }
+                        } else {
+                            Files.copy(blob.toPath(), copy.toPath())
+                            parent.addChild(Resource.ResourceFile(copy, parent, name, flags, extension))
+                        }
+                    }
+                }
+                Log.debug(LOG, "Replayed $file from $entryFolder")
+                return result
+            }
+        } catch (e: IOException) {
+            Log.warn(LOG, "Failed to replay cached result from $entryFolder", e)
+            return null
+        }
+    }
+
+    private fun store(task: Task, file: Resource.ResourceFile, events: List<TreeJournal.Event>, result: Boolean, entryFolder: File) {
+        if (!result && events.isEmpty()) {
+            // Task did nothing, that is cheap enough to find out again
+            return
+        }
+        misses.incrementAndGet()
+
+        val parent = file.parent
+        for (event in events) {
+            val cacheable = when (event.resource) {
+                file -> !event.added && event.directory == parent
+                is Resource.ResourceFile -> event.added && event.directory == parent
+                else -> false
+            }
+            if (!cacheable) {
+                Log.debug(LOG, "Result of ${task.Name} on $file can't be cached, it changes the tree too much")
+                return
+            }
+        }
+
+        try {
+            val tempEntry = newTempEntry(entryFolder)
+            DataOutputStream(BufferedOutputStream(FileOutputStream(File(tempEntry, ManifestName)))).use { out ->
+                out.writeInt(ManifestVersion)
+                out.writeBoolean(result)
+                out.writeInt(events.size)
+                var blobIndex = 0
+                for (event in events) {
+                    val resource = event.resource
+                    if (resource === file) {
+                        out.writeBoolean(true)
+                        continue
+                    }
+                    resource as Resource.ResourceFile
+                    out.writeBoolean(false)
+                    out.writeUTF(resource.name)
+                    out.writeUTF(resource.extension)
+                    out.writeInt(resource.flags.size)
+                    for (flag in resource.flags) {
+                        out.writeUTF(flag)
+                    }
+                    val blobName = "${blobIndex++}.blob"
+                    out.writeUTF(blobName)
+                    val image = resource.image
+                    if (image != null) {
+                        // Image which is only in memory is stored without writing its file
+                        val type = saveImageData(image, File(tempEntry, blobName))
+                        out.writeBoolean(true)
+                        out.writeInt(image.width)
+                        out.writeInt(image.height)
+                        out.writeInt(type)
+                    } else {
+                        Files.copy(resource.file.toPath(), File(tempEntry, blobName).toPath())
+                        out.writeBoolean(false)
+                    }
+                }
+            }
+            commitEntry(tempEntry, entryFolder)
+        } catch (e: IOException) {
+            Log.warn(LOG, "Failed to store result of ${task.Name} on $file in cache", e)
+        }
+    }
+
+    private fun entryFolder(task: Task, key: Key): File {
+        key.add(settingsKey)
+        return File(File(cacheRoot, task.Name), key.hex())
+    }
+
+    private fun newTempEntry(entryFolder: File): File {
+        entryFolder.parentFile.mkdirs()
+        return Files.createTempDirectory(entryFolder.parentFile.toPath(), ".tmp-").toFile()
+    }
+
+    private fun commitEntry(tempEntry: File, entryFolder: File) {
+        try {
+            Files.move(tempEntry.toPath(), entryFolder.toPath(), StandardCopyOption.ATOMIC_MOVE)
+        } catch (e: IOException) {
+            // Most likely stored concurrently by someone else
+            janitor.clearFolder(tempEntry, deleteDir = true)
+        }
+    }
+
+    private fun copyFolder(from: File, to: File) {
+        to.mkdirs()
+        for (file in from.listFiles() ?: emptyArray()) {
+            val target = File(to, file.name)
+            if (file.isDirectory) {
+                copyFolder(file, target)
+            } else {
+                Files.copy(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING)
+            }
+        }
+    }
+
+    private fun loadHashIndex() {
+        if (!hashIndexFile.isFile) return
+        try {
+            hashIndexFile.forEachLine(Charsets.UTF_8) { line ->
+                val parts = line.split(' ', limit = 4)
+                if (parts.size == 4) {
+                    hashIndex[parts[3]] = HashIndexEntry(parts[0].toLong(), parts[1].toLong(), unhex(parts[2]))
+                }
+            }
+        } catch (e: Exception) {
+            Log.warn(LOG, "Failed to load hash index, all files will be hashed", e)
+            hashIndex.clear()
+        }
+    }
+
+    private fun saveHashIndex() {
+        val temp = File(cacheRoot, "hashes.tmp")
+        temp.bufferedWriter(Charsets.UTF_8).use { out ->
+            for ((path, entry) in hashIndex) {
+                out.append(entry.size.toString()).append(' ')
+                        .append(entry.modified.toString()).append(' ')
+                        .append(hex(entry.hash)).append(' ')
+                        .append(path).append('\n')
+            }
+        }
+        Files.move(temp.toPath(), hashIndexFile.toPath(), StandardCopyOption.REPLACE_EXISTING)
+    }
+
+    private class HashIndexEntry(val size: Long, val modified: Long, val hash: ByteArray)
+
+    /**
+     * Builds a cache key from inputs of task invocation.
+     */
+    inner class Key internal constructor(task: Task) {
+        private val digest = MessageDigest.getInstance("SHA-1")
+
+        init {
+            add(task.Name)
+            add(task.cacheVersion.toString())
+        }
+
+        fun add(value: String) {
+            digest.update(value.toByteArray(Charsets.UTF_8))
+            digest.update(0)
+        }
+
+        /** Adds content of the file. */
+        fun add(file: File) {
+            digest.update(contentHash(file))
+        }
+
+        /** Adds content, name, flags and extension of the file, along with names and flags of all its parents. */
+        fun add(file: Resource.ResourceFile) {
+            digest.update(contentHash(file))
+            add(file.name)
+            add(file.extension)
+            for (flag in file.flags) {
+                add(flag)
+            }
+            addParents(file.parent)
+        }
+
+        /** Adds name and flags of the directory and of all its parents. */
+        fun addParents(directory: Resource.ResourceDirectory) {
+            var dir = directory
+            while (true) {
+                add("/")
+                add(dir.name)
+                for (flag in dir.flags) {
+                    add(flag)
+                }
+                if (dir.parent == dir) break
+                dir = dir.parent
+            }
+        }
+
+        internal fun hex(): String = hex(digest.digest())
+    }
+
+    private companion object {
+        const val LOG = "TaskCache"
+        const val ManifestName = "manifest"
+        const val ManifestVersion = 2
+
+        fun hex(bytes: ByteArray): String {
+            val sb = StringBuilder(bytes.size * 2)
+            for (b in bytes) {
+                val v = b.toInt() and 0xFF
+                sb.append(Character.forDigit(v ushr 4, 16)).append(Character.forDigit(v and 0xF, 16))
+            }
+            return sb.toString()
+        }
+
+        fun unhex(hex: String): ByteArray {
+            return ByteArray(hex.length / 2) { i -> ((Character.digit(hex[i * 2], 16) shl 4) or Character.digit(hex[i * 2 + 1], 16)).toByte() }
+        }
+    }
+}
+
+/**
+ * Records changes of the virtual tree done by the current thread.
+ * Used by [TaskCache] to find out what did the task do
+ * and by parallel task application to apply the changes in a deterministic order.
+ *
+ * @param defers changes of children of directories for which this returns true are only recorded and not done,
+ * until [apply] is called
+ */
+internal class TreeJournal(private val defers: (Resource.ResourceDirectory) -> Boolean = { false }) {
+
+    class Event(val added: Boolean, val directory: Resource.ResourceDirectory, val resource: Resource, val deferred: Boolean)
+
+    val events = ArrayList<Event>()
+
+    /** Does all deferred changes. */
+    fun apply() {
+        for (event in events) {
+            if (event.deferred) {
+                event.apply()
+            }
+        }
+        events.clear()
+    }
+
+    /** Does all deferred changes of the [directory]'s children, others stay recorded. */
+    fun applyTo(directory: Resource.ResourceDirectory) {
+        val ownEvents = events.filter { it.deferred && it.directory === directory }
+        if (ownEvents.isEmpty()) return
+        events.removeAll(ownEvents)
+        for (event in ownEvents) {
+            event.apply()
+        }
+    }
+
+    private fun Event.apply() {
+        if (added) {
+            directory.addChild(resource)
+        } else {
+            directory.removeChild(resource)
+        }
+    }
+
+    companion object {
+        val active = ThreadLocal<TreeJournal>()
+
+        /** Runs [action] with [journal] active on this thread, then restores the previously active journal. */
+        inline fun <T> recordInto(journal: TreeJournal?, action: () -> T): T {
+            val previous = active.get()
+            active.set(journal)
+            try {
+                return action()
+            } finally {
+                active.set(previous)
+            }
+        }
+
+        /** @return true if the change should not be done now, because it has been deferred */
+        fun added(directory: Resource.ResourceDirectory, resource: Resource): Boolean {
+            return active.get()?.record(true, directory, resource) ?: false
+        }
+
+        /** @return true if the change should not be done now, because it has been deferred */
+        fun removed(directory: Resource.ResourceDirectory, resource: Resource): Boolean {
+            return active.get()?.record(false, directory, resource) ?: false
+        }
+    }
+
+    private fun record(added: Boolean, directory: Resource.ResourceDirectory, resource: Resource): Boolean {
+        val deferred = defers(directory)
+        events.add(Event(added, directory, resource, deferred))
+        return deferred
+    }
+}
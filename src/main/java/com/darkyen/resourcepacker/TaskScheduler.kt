@@ -0,0 +1,251 @@
+package com.darkyen.resourcepacker
+
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.LinkedBlockingQueue
+
+/**
+ * Runs consecutive [Task.local] tasks on independent parts of the tree at the same time.
+ *
+ * Each directory in the root, with its subtree, is one part and files in the root are another one.
+ * Every part goes through the tasks in order, but does not wait for other parts.
+ * Two tasks run in the same part at the same time only if they are [Task.parallel] and don't touch the same files,
+ * see [Task.consumes]. Changes done by such tasks are applied later, in the order of tasks,
+ * so the resulting tree does not depend on timing.
+ *
+ * Changes of the root done while working on directory parts are applied after all parts are done,
+ * again in the order of tasks. Remaining tasks are then applied to resources added to the root this way.
+ * The root directory itself is given to tasks together with files in the root.
+ *
+ * When a task fails, no more tasks are started and its error is thrown once the running ones finish,
+ * so that nothing changes the tree after [run] returns.
+ *
+ * @author Darkyen
+ */
+internal class TaskScheduler(private val root: Resource.ResourceDirectory,
+                             private val tasks: List<Task>,
+                             private val pool: ForkJoinPool) {
+
+    private val results = BooleanArray(tasks.size)
+    private val parts = ArrayList<Part>()
+    private val finished = LinkedBlockingQueue<Node>()
+    /** Nodes given to the pool, which did not finish yet */
+    private var running = 0
+    /** Set when some node failed, nodes which did not start yet then do nothing */
+    @Volatile
+    private var cancelled = false
+
+    /** Tasks which may run at the same time as some other task in the same part and so must defer their changes */
+    private val deferred = BooleanArray(tasks.size) { task ->
+        tasks.indices.any { it < task && concurrent(it, task) || it > task && concurrent(task, it) }
+    }
+
+    /** @return for each task, whether it did anything */
+    fun run(): BooleanArray {
+        parts.add(Part(null))
+        for (directory in root.directories) {
+            parts.add(Part(directory))
+        }
+
+        var remaining = parts.size * tasks.size
+        startReadyNodes()
+        while (remaining > 0) {
+            val node = finished.take()
+            running--
+            node.error?.let { fail(it) }
+            node.state = State.Done
+
+            val part = node.part
+            while (part.committed < tasks.size) {
+                val next = part.nodes[part.committed]
+                if (next.state == State.Done) {
+                    commit(next)
+                } else if (next.state != State.Waiting || !part.removed) {
+                    break
+                }
+                part.committed++
+                remaining--
+            }
+            startReadyNodes()
+        }
+
+        applyRootChanges()
+        return results
+    }
+
+    /** Waits until no node is running, so that nothing changes the tree anymore, then throws [error]. */
+    private fun fail(error: Throwable): Nothing {
+        cancelled = true
+        while (running > 0) {
+            val node = finished.take()
+            running--
+            val otherError = node.error
+            if (otherError != null && otherError !== error) {
+                error.addSuppressed(otherError)
+            }
+        }
+        throw error
+    }
+
+    private fun startReadyNodes() {
+        for (part in parts) {
+            if (part.removed) continue
+            for (index in part.committed until tasks.size) {
+                val node = part.nodes[index]
+                if (node.state == State.Waiting && isReady(node)) {
+                    node.state = State.Running
+                    running++
+                    pool.execute(node)
+                }
+            }
+        }
+    }
+
+    private fun isReady(node: Node): Boolean {
+        val part = node.part
+        for (index in part.committed until node.taskIndex) {
+            if (part.directory == null || !concurrent(index, node.taskIndex)) {
+                return false
+            }
+        }
+        return true
+    }
+
+    /** @return true if task [first] may run at the same time as later task [second] */
+    private fun concurrent(first: Int, second: Int): Boolean {
+        val a = tasks[first]
+        val b = tasks[second]
+        if (!a.parallel || !b.parallel) return false
+        val aConsumes = a.consumes ?: return false
+        val aProduces = a.produces ?: return false
+        val bConsumes = b.consumes ?: return false
+        val bProduces = b.produces ?: return false
+        return aConsumes.none { it in bConsumes || it in bProduces } && aProduces.none { it in bConsumes }
+    }
+
+    private fun commit(node: Node) {
+        val part = node.part
+        if (part.removed) {
+            // Directory was removed by an earlier task, so it would not be processed at all
+            return
+        }
+
+        val journal = node.journal
+        if (journal != null) {
+            TreeJournal.recordInto(node.rootJournal) {
+                journal.apply()
+            }
+        }
+        if (node.result) {
+            results[node.taskIndex] = true
+        }
+        if (node.rootJournal.events.any { !it.added && it.resource === part.directory }) {
+            part.removed = true
+        }
+    }
+
+    private fun applyRootChanges() {
+        val pending = ArrayList<Pair<Resource, Int>>()
+        for (taskIndex in tasks.indices) {
+            for (part in parts) {
+                val rootJournal = part.nodes[taskIndex].rootJournal
+                for (event in rootJournal.events) {
+                    if (event.deferred && event.added) {
+                        pending.add(event.resource to taskIndex + 1)
+                    }
+                }
+                rootJournal.apply()
+            }
+        }
+
+        // Catch up with tasks that would process added resources, if they were there from the beginning
+        var index = 0
+        while (index < pending.size) {
+            val (resource, firstTask) = pending[index++]
+            for (taskIndex in firstTask until tasks.size) {
+                if (!isInRoot(resource)) break
+                val journal = TreeJournal()
+                if (TreeJournal.recordInto(journal) { resource.applyTask(tasks[taskIndex]) }) {
+                    results[taskIndex] = true
+                }
+                for (event in journal.events) {
+                    if (event.added && event.directory === root) {
+                        pending.add(event.resource to taskIndex + 1)
+                    }
+                }
+            }
+        }
+    }
+
+    private fun isInRoot(resource: Resource): Boolean {
+        return when (resource) {
+            is Resource.ResourceFile -> root.files.any { it === resource }
+            is Resource.ResourceDirectory -> root.directories.any { it === resource }
+        }
+    }
+
+    private enum class State {
+        Waiting,
+        Running,
+        Done
+    }
+
+    /**
+     * @param directory of the part, null for the part of the root files
+     */
+    private inner class Part(val directory: Resource.ResourceDirectory?) {
+        val nodes = Array(tasks.size) { Node(this, it) }
+        /** Nodes before this index are done and their changes applied */
+        var committed = 0
+        /** Directory was removed from the root by some task, later tasks must not touch it */
+        var removed = false
+    }
+
+    /** Work of a single task in a single part. */
+    private inner class Node(val part: Part, val taskIndex: Int) : Runnable {
+        @Volatile
+        var state = State.Waiting
+        /** Changes of the root, which are applied after all parts are done. */
+        val rootJournal = TreeJournal { part.directory != null && it === root }
+        /** When not null, changes which were not yet applied, because other tasks could be running in the same part */
+        var journal: TreeJournal? = null
+        var result = false
+        var error: Throwable? = null
+
+        override fun run() {
+            if (cancelled) {
+                finished.put(this)
+                return
+            }
+            try {
+                val task = tasks[taskIndex]
+                val directory = part.directory
+                if (directory == null) {
+                    result = task.operateMeasured(root)
+                    for (file in ArrayList(root.files)) {
+                        if (file.applyTask(task)) {
+                            result = true
+                        }
+                    }
+                } else if (deferred[taskIndex]) {
+                    val application = ParallelTaskApplication(task, directory, deferAll = true)
+                    result = application.invoke()
+                    journal = application.journal
+                } else {
+                    result = TreeJournal.recordInto(rootJournal) {
+                        if (task.parallel) {
+                            val application = ParallelTaskApplication(task, directory)
+                            val result = application.invoke()
+                            application.journal.apply()
+                            result
+                        } else {
+                            directory.applyTask(task)
+                        }
+                    }
+                }
+            } catch (e: Throwable) {
+                error = e
+            }
+            finished.put(this)
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package com.darkyen.resourcepacker
+
+import com.badlogic.gdx.utils.JsonWriter
+import com.esotericsoftware.minlog.Log
+import java.io.File
+import java.io.FileWriter
+import java.lang.management.ManagementFactory
+import java.util.concurrent.ConcurrentLinkedQueue
+
+val TimingReport = SettingKey<File?>("TimingReport", null,
+        "File into which a JSON report of time spent by each task and on each resource is written. " +
+                "When set, summary of the slowest tasks and resources is also logged.")
+
+val TimingSummarySize = SettingKey("TimingSummarySize", 10,
+        "How many of the slowest resources are logged in the summary of TimingReport.")
+
+/**
+ * Measures time and I/O of each [Task.operate] invocation, for [TimingReport].
+ *
+ * Bytes read are the size of the file (or of files directly in the directory) given to the task,
+ * files which are only in memory (see [Resource.ResourceFile.image]) count as empty,
+ * bytes written are the size of files and directories created through [OperationJanitor] during the invocation.
+ * Both are counted only for invocations which did something.
+ * Only invocations which did something are reported individually, others are counted only in the task totals.
+ *
+ * @author Darkyen
+ */
+class TaskTimings {
+
+    private val threadBean = ManagementFactory.getThreadMXBean()
+    private val measureCpu = threadBean.isCurrentThreadCpuTimeSupported
+    private val current = ThreadLocal<Measurement?>()
+    private val measurements = ConcurrentLinkedQueue<Measurement>()
+    private val passes = ArrayList<Pass>()
+    private val startTime = System.nanoTime()
+
+    /** Nanoseconds spent writing the output, if known */
+    internal var outputNanos = 0L
+
+    /** Runs [operate] of [task] on [resource] (or on nothing, when null) and remembers how long it took. */
+    internal inline fun measure(task: Task, resource: Resource?, operate: () -> Boolean): Boolean {
+        val measurement = begin(task, resource)
+        var result = false
+        try {
+            result = operate()
+        } finally {
+            end(measurement, result)
+        }
+        return result
+    }
+
+    internal fun begin(task: Task, resource: Resource?): Measurement {
+        val measurement = Measurement(task.Name, resource?.virtualPath() ?: "", current.get())
+        measurement.bytesRead = when (resource) {
+            is Resource.ResourceFile -> resource.knownSize
+            is Resource.ResourceDirectory -> resource.files.sumByLong { it.knownSize }
+            null -> 0L
+        }
+        current.set(measurement)
+        measurement.cpuNanos = if (measureCpu) threadBean.currentThreadCpuTime else 0L
+        measurement.wallNanos = System.nanoTime()
+        return measurement
+    }
+
+    internal fun end(measurement: Measurement, result: Boolean) {
+        measurement.wallNanos = System.nanoTime() - measurement.wallNanos
+        measurement.cpuNanos = if (measureCpu) threadBean.currentThreadCpuTime - measurement.cpuNanos else 0L
+        measurement.result = result
+        for (file in measurement.created) {
+            measurement.bytesWritten += sizeOf(file)
+        }
+        measurement.created.clear()
+        current.set(measurement.outer)
+        measurements.add(measurement)
+    }
+
+    /** Remembers that a pass of [task] over the whole tree took [nanos]. */
+    internal fun pass(task: Task, nanos: Long) {
+        synchronized(passes) {
+            passes.add(Pass(listOf(task.Name), nanos))
+        }
+    }
+
+    /** Remembers that a pass of [tasks], which were running at the same time, over the whole tree took [nanos]. */
+    internal fun pass(tasks: List<Task>, nanos: Long) {
+        synchronized(passes) {
+            passes.add(Pass(tasks.map { it.Name }, nanos))
+        }
+    }
+
+    /** Called by [OperationJanitor] for each file or directory given to a task. */
+    internal fun created(file: File) {
+        current.get()?.created?.add(file)
+    }
+
+    private fun sizeOf(file: File): Long {
+        if (file.isDirectory) {
+            return (file.listFiles() ?: emptyArray()).sumByLong { sizeOf(it) }
+        }
+        return file.length()
+    }
+
+    private fun totals(): List<Total> {
+        val totals = LinkedHashMap<String, Total>()
+        for (measurement in measurements) {
+            val total = totals.getOrPut(measurement.task) { Total(measurement.task) }
+            // Nested measurements are already counted in the outer ones
+            if (measurement.outer == null || measurement.outer.task != measurement.task) {
+                total.wallNanos += measurement.wallNanos
+                total.cpuNanos += measurement.cpuNanos
+                if (measurement.result) {
+                    total.bytesRead += measurement.bytesRead
+                    total.bytesWritten += measurement.bytesWritten
+                }
+            }
+            if (measurement.resource.isNotEmpty()) {
+                total.resources++
+                if (measurement.result) {
+                    total.changed++
+                }
+            }
+        }
+        return totals.values.sortedByDescending { it.wallNanos }
+    }
+
+    /** Writes the JSON report into [file]. */
+    fun writeReport(file: File) {
+        file.absoluteFile.parentFile?.mkdirs()
+        JsonWriter(FileWriter(file)).use { json ->
+            json.setOutputType(JsonWriter.OutputType.json)
+            json.`object`()
+            json.set("totalMs", millis(System.nanoTime() - startTime))
+            json.set("outputMs", millis(outputNanos))
+            json.array("tasks")
+            for (total in totals()) {
+                json.`object`()
+                json.set("task", total.task)
+                json.set("wallMs", millis(total.wallNanos))
+                json.set("cpuMs", millis(total.cpuNanos))
+                json.set("resources", total.resources)
+                json.set("changed", total.changed)
+                json.set("bytesRead", total.bytesRead)
+                json.set("bytesWritten", total.bytesWritten)
+                json.pop()
+            }
+            json.pop()
+            json.array("passes")
+            for (pass in passes) {
+                json.`object`()
+                json.array("tasks")
+                for (task in pass.tasks) {
+                    json.value(task)
+                }
+                json.pop()
+                json.set("wallMs", millis(pass.nanos))
+                json.pop()
+            }
+            json.pop()
+            json.array("resources")
+            for (measurement in measurements.sortedByDescending { it.wallNanos }) {
+                if (!measurement.result || measurement.resource.isEmpty()) continue
+                json.`object`()
+                json.set("task", measurement.task)
+                json.set("resource", measurement.resource)
+                json.set("wallMs", millis(measurement.wallNanos))
+                json.set("cpuMs", millis(measurement.cpuNanos))
+                json.set("bytesRead", measurement.bytesRead)
+                json.set("bytesWritten", measurement.bytesWritten)
+                json.pop()
+            }
+            json.pop()
+            json.pop()
+        }
+    }
+
+    /** Logs time spent by each task and by [count] slowest resources. */
+    fun logSummary(count: Int) {
+        val sb = StringBuilder()
+        sb.append("Time spent by tasks:")
+        for (total in totals()) {
+            if (total.wallNanos == 0L && total.resources == 0) continue
+            sb.append("\n  ").append(total.task).append(": ").append(formatMillis(total.wallNanos))
+                    .append(" (cpu ").append(formatMillis(total.cpuNanos))
+                    .append(", changed ").append(total.changed).append('/').append(total.resources).append(" resources)")
+        }
+        Log.info("TaskTimings", sb.toString())
+
+        if (count <= 0) return
+        sb.setLength(0)
+        sb.append("Slowest resources:")
+        for (measurement in measurements.filter { it.resource.isNotEmpty() }.sortedByDescending { it.wallNanos }.take(count)) {
+            sb.append("\n  ").append(measurement.task).append(' ').append(measurement.resource)
+                    .append(": ").append(formatMillis(measurement.wallNanos))
+        }
+        Log.info("TaskTimings", sb.toString())
+    }
+
+    private fun millis(nanos: Long): Double = Math.round(nanos / 1000.0) / 1000.0
+
+    private fun formatMillis(nanos: Long): String = "%.1fms".format(nanos / 1000000.0)
+
+    private inline fun <T> Array<T>.sumByLong(selector: (T) -> Long): Long {
+        var sum = 0L
+        for (element in this) {
+            sum += selector(element)
+        }
+        return sum
+    }
+
+    private inline fun <T> Iterable<T>.sumByLong(selector: (T) -> Long): Long {
+        var sum = 0L
+        for (element in this) {
+            sum += selector(element)
+        }
+        return sum
+    }
+
+    internal class Measurement(val task: String, val resource: String, val outer: Measurement?) {
+        var wallNanos = 0L
+        var cpuNanos = 0L
+        var bytesRead = 0L
+        var bytesWritten = 0L
+        var result = false
+        val created = ArrayList<File>()
+    }
+
+    private class Pass(val tasks: List<String>, val nanos: Long)
+
+    private class Total(val task: String) {
+        var wallNanos = 0L
+        var cpuNanos = 0L
+        var resources = 0
+        var changed = 0
+        var bytesRead = 0L
+        var bytesWritten = 0L
+    }
+}
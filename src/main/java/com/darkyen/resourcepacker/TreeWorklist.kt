@@ -0,0 +1,73 @@
+package com.darkyen.resourcepacker
+
+/**
+ * Resources changed since they were last seen by a repeating task, which must see them again.
+ * Lets [Task.repeating] tasks reach their fixed point in time proportional to the changes they do,
+ * instead of walking the whole tree again after each successful pass.
+ *
+ * Active worklist of the operation is in [OperationContext.worklist], tree changes are reported to it by [Resource].
+ */
+internal class TreeWorklist {
+
+    /** Changed resources in the order of changes, true when their whole subtree must be seen again, false if only themselves */
+    private val pending = LinkedHashMap<Resource, Boolean>()
+
+    /** [resource] was added or its flags have changed, so it and its subtree must be seen again */
+    @Synchronized
+    fun subtreeChanged(resource: Resource) {
+        pending[resource] = true
+    }
+
+    /** Children of [directory] have changed, so the directory itself must be seen again */
+    @Synchronized
+    fun childrenChanged(directory: Resource.ResourceDirectory) {
+        if (!pending.containsKey(directory)) {
+            pending[directory] = false
+        }
+    }
+
+    @Synchronized
+    private fun poll(): Map.Entry<Resource, Boolean>? {
+        val iterator = pending.entries.iterator()
+        if (!iterator.hasNext()) return null
+        val entry = iterator.next()
+        iterator.remove()
+        return entry
+    }
+
+    /**
+     * Runs the [task] on changed resources, until there are no more changes.
+     * Removed resources are skipped, they will be reported again if they are added back.
+     * @return how many times did the task do something
+     */
+    fun runUntilFixedPoint(task: Task): Int {
+        var times = 0
+        while (true) {
+            val (resource, subtree) = poll() ?: return times
+            if (!resource.attached && resource.parent !== resource) {
+                continue
+            }
+
+            val result = if (subtree) {
+                resource.applyTask(task)
+            } else {
+                task.operateMeasured(resource as Resource.ResourceDirectory)
+            }
+            if (result) {
+                times++
+            }
+        }
+    }
+
+    companion object {
+        /** Reports that [resource] was added or its flags have changed, to the worklist of the current operation, if any */
+        fun subtreeChanged(resource: Resource) {
+            OperationContext.current.get()?.worklist?.subtreeChanged(resource)
+        }
+
+        /** Reports that children of [directory] have changed, to the worklist of the current operation, if any */
+        fun childrenChanged(directory: Resource.ResourceDirectory) {
+            OperationContext.current.get()?.worklist?.childrenChanged(directory)
+        }
+    }
+}
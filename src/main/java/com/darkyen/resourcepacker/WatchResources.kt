@@ -0,0 +1,226 @@
+@file:JvmName("ResourcePacker")
+@file:JvmMultifileClass
+
+package com.darkyen.resourcepacker
+
+import com.darkyen.resourcepacker.tasks.DefaultTasks
+import com.esotericsoftware.minlog.Log
+import java.io.File
+import java.nio.file.*
+import java.util.concurrent.TimeUnit
+
+/*
+ * Watch mode of the Resource Packer
+ */
+
+/**
+ * Packs resources like [packResources] and then keeps watching [from] for changes, until the thread is interrupted.
+ *
+ * Each directory in [from] is packed on its own (files directly in [from] are packed together),
+ * so when something changes, only the directories which contain the change are packed again
+ * and only their files in [to] are updated. Tasks therefore must not depend on resources in other directories of [from].
+ *
+ * The virtual tree of a changed directory is scanned again for each repack, because tasks change the tree in place,
+ * so the tree of the previous pack no longer describes the sources. Scanning a directory costs only a listing of it.
+ * What stays in memory for the whole session is the janitor, the pool of [ParallelTasks] and, with [Incremental],
+ * the task cache with remembered hashes of files, so unchanged images are not rasterized or packed again.
+ */
+@JvmOverloads
+fun watchResources(from: File, to: File,
+                   settings: List<Setting<*>> = emptyList(),
+                   tasks: List<Task> = DefaultTasks,
+                   workingRootProvider: WorkingRootProvider = TemporaryWorkingRootProvider) {
+    if (!from.isDirectory) {
+        Log.error("ResourcePacker", "${from.canonicalPath} is not a directory.")
+        return
+    }
+
+    val context = OperationContext(settings)
+    context.bind {
+        val janitor = OperationJanitor(workingRootProvider)
+        context.janitor = janitor
+        if (Incremental.get()) {
+            janitor.enableTaskCache(settings)
+        }
+
+        try {
+            ResourceWatcher(from.canonicalFile, to, tasks, janitor).run()
+        } finally {
+            janitor.dispose()
+        }
+    }
+}
+
+/**
+ * Packs parts of the resource directory separately and keeps their output up to date.
+ * Part is either a name of directory in [from], or [RootFilesPart] for files directly in [from].
+ */
+private class ResourceWatcher(private val from: File, private val to: File,
+                              private val tasks: List<Task>, private val janitor: OperationJanitor) {
+
+    private val watchService = FileSystems.getDefault().newWatchService()
+    /** Pool of [ParallelTasks], shared by all repacks */
+    private val pool = if (ParallelTasks.get()) OperationContext.get().newForkJoinPool() else null
+    private val watchedDirectories = HashMap<WatchKey, Path>()
+
+    /** Paths of files and directories (ending with '/') in [to], created for each part */
+    private val outputs = HashMap<String, Set<String>>()
+
+    fun run() {
+        try {
+            watch()
+        } finally {
+            pool?.shutdown()
+        }
+    }
+
+    private fun watch() {
+        watchService.use {
+            prepareOutputDirectory(janitor, to, clear = false)
+            watchRecursively(from.toPath())
+
+            val startTime = System.currentTimeMillis()
+            for (part in listParts()) {
+                tryPack(part)
+            }
+            // Remove what is left from previous runs
+            OutputWriter(to, janitor).deleteStale(outputs.values.flatMapTo(HashSet()) { it })
+            Log.info("ResourcePacker", "Packed \"${from.path}\" into \"${to.path}\" (in " + "%.2f".format((System.currentTimeMillis() - startTime) / 1000f) + "s), watching for changes")
+
+            while (true) {
+                val changedParts = awaitChanges() ?: break
+                for (part in changedParts.sorted()) {
+                    tryPack(part)
+                }
+            }
+        }
+    }
+
+    private fun listParts(): List<String> {
+        val parts = ArrayList<String>()
+        for (file in from.listFiles() ?: emptyArray()) {
+            if (file.name.startsWith('.')) continue
+            if (file.isDirectory) {
+                parts.add(file.name)
+            } else if (RootFilesPart !in parts) {
+                parts.add(RootFilesPart)
+            }
+        }
+        return parts
+    }
+
+    private fun watchRecursively(directory: Path) {
+        val key = directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY)
+        watchedDirectories[key] = directory
+        for (file in directory.toFile().listFiles() ?: emptyArray()) {
+            if (file.isDirectory && !file.name.startsWith('.')) {
+                watchRecursively(file.toPath())
+            }
+        }
+    }
+
+    /**
+     * Waits for changes in [from].
+     * @return parts which have changed or null when interrupted
+     */
+    private fun awaitChanges(): Set<String>? {
+        val changedParts = HashSet<String>()
+        try {
+            var key: WatchKey? = watchService.take()
+            while (key != null) {
+                val directory = watchedDirectories[key]
+                for (event in key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW || directory == null) {
+                        changedParts.addAll(listParts())
+                        changedParts.addAll(outputs.keys)
+                        continue
+                    }
+                    val path = directory.resolve(event.context() as Path)
+                    if (path.fileName.toString().startsWith('.')) continue
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+                        watchRecursively(path)
+                    }
+                    changedParts.add(partOf(path))
+                }
+                if (!key.reset()) {
+                    watchedDirectories.remove(key)
+                }
+
+                // Editors often save files in multiple steps, wait until they are done
+                key = watchService.poll(SettleTimeMs, TimeUnit.MILLISECONDS)
+            }
+        } catch (e: InterruptedException) {
+            return null
+        } catch (e: ClosedWatchServiceException) {
+            return null
+        }
+        return changedParts
+    }
+
+    private fun partOf(path: Path): String {
+        val name = from.toPath().relativize(path).getName(0).toString()
+        return if (Files.isDirectory(from.toPath().resolve(name)) || (name in outputs && name != RootFilesPart)) name else RootFilesPart
+    }
+
+    /**
+     * Packs the [part] like [pack], but when it fails, only logs it and keeps the previous output of the [part],
+     * because sources are often broken while they are being edited and the next change will fix them.
+     */
+    private fun tryPack(part: String) {
+        try {
+            pack(part)
+        } catch (e: Exception) {
+            Log.error("ResourcePacker", "Failed to pack \"$part\", keeping its previous output until it changes again", e)
+            janitor.clearTemporaryFiles()
+        }
+    }
+
+    /** Packs the [part] again and updates its output. */
+    private fun pack(part: String) {
+        val startTime = System.currentTimeMillis()
+        val root = Resource.ResourceDirectory(from, null, from.absolutePath)
+        if (part == RootFilesPart) {
+            for (file in from.listFiles() ?: emptyArray()) {
+                if (file.isFile) {
+                    root.addChild(file)
+                }
+            }
+        } else {
+            val directory = File(from, part)
+            if (directory.isDirectory) {
+                root.addChild(directory)
+            }
+        }
+
+        val created = if (root.hasChildren()) {
+            runTasks(root, tasks, janitor, pool)
+            collectOutputs(root)
+        } else emptyMap<String, Resource>()
+
+        val writer = OutputWriter(to, janitor)
+        val previous = outputs[part] ?: emptySet<String>()
+        for (path in previous.sortedDescending()) {
+            if (path !in created && outputs.none { (otherPart, otherOutputs) -> otherPart != part && path in otherOutputs }) {
+                val file = File(to, path)
+                if (file.isFile || file.list()?.isEmpty() == true) {
+                    writer.delete(file)
+                }
+            }
+        }
+
+        writer.write(created)
+
+        if (created.isEmpty()) {
+            outputs.remove(part)
+        } else {
+            outputs[part] = created.keys
+        }
+        janitor.clearTemporaryFiles()
+        Log.info("ResourcePacker", "Packed \"$part\" (in " + "%.2f".format((System.currentTimeMillis() - startTime) / 1000f) + "s, ${writer.writtenCount} files written)")
+    }
+
+    private companion object {
+        const val RootFilesPart = ""
+        const val SettleTimeMs = 50L
+    }
+}
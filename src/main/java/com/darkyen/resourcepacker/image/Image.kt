@@ -1,6 +1,8 @@
 package com.darkyen.resourcepacker.image
 
 import com.badlogic.gdx.math.MathUtils
+import com.darkyen.resourcepacker.Flag
+import com.darkyen.resourcepacker.FlagPattern
 import com.darkyen.resourcepacker.Resource
 import com.darkyen.resourcepacker.SettingKey
 import com.darkyen.resourcepacker.util.batik.SVGFile
@@ -25,8 +27,12 @@ import java.util.*
  *
  * Width or height may be '?', to signify that it is specified by PixelSizePattern
  * or that it should be derived by the aspect ratio of the file.
+ *
+ * Parsed to width and height in tiles, negative when '?'.
  */
-val TileSizePattern = Regex("""w((?:\d+(?:,\d+)?)|\?)h((?:\d+(?:,\d+)?)|\?)""")
+val TileSizePattern = FlagPattern(Regex("""w((?:\d+(?:,\d+)?)|\?)h((?:\d+(?:,\d+)?)|\?)""")) { (width, height) ->
+    Pair(parseTileFraction(width), parseTileFraction(height))
+}
 
 /**
  * Example:
@@ -34,8 +40,12 @@ val TileSizePattern = Regex("""w((?:\d+(?:,\d+)?)|\?)h((?:\d+(?:,\d+)?)|\?)""")
  *
  * Width or height may be '?', to signify that it is specified by PixelSizePattern
  * or that it should be derived by the aspect ratio of the file.
+ *
+ * Parsed to width and height in pixels, -1 when '?'.
  */
-val PixelSizePattern = Regex("""((?:\d+)|\?)x((?:\d+)|\?)""")
+val PixelSizePattern = FlagPattern(Regex("""((?:\d+)|\?)x((?:\d+)|\?)""")) { (width, height) ->
+    Pair(if (width == "?") -1 else width.toInt(), if (height == "?") -1 else height.toInt())
+}
 
 /**
  * Matches: #RRGGBB
@@ -44,7 +54,7 @@ val PixelSizePattern = Regex("""((?:\d+)|\?)x((?:\d+)|\?)""")
  * #FF0056
  * to capture groups RR GG BB
  */
-val PreBlendRegex = Regex("#$ColorRegexGroup")
+val PreBlendPattern = FlagPattern(Regex("#$ColorRegexGroup")) { (color) -> parseHexColor(color).toAwt() }
 
 /**
  * Matches: scaling <algo>
@@ -52,15 +62,29 @@ val PreBlendRegex = Regex("#$ColorRegexGroup")
  * Example:
  * scaling bilinear
  */
-val ScalingRegex = Regex("scaling (\\w+)")
+val ScalingPattern = FlagPattern(Regex("scaling (\\w+)")) { (algo) ->
+    val scaling = ImageScaling.values().find { it.scalingName.equals(algo, ignoreCase = true) }
+    if (scaling == null) {
+        Log.warn("Image", "Unknown scaling algorithm '$algo'")
+    }
+    scaling
+}
+
+/** Flag of ninepatch images */
+val NinepatchFlag = Flag.of("9")
 
 val TileSize: SettingKey<Int> = SettingKey("TileSize", 128, "Size of tile used by w<W>h<H> flag pattern")
 
 val DefaultImageScaling: SettingKey<ImageScaling> = SettingKey("DefaultImageScaling", ImageScaling.Bilinear, "Image scaling algorithm used by default")
 
-private fun tileFraction(input: String): Int {
-    if (input.isEmpty()) return -1
-    return Math.round(input.replace(',', '.').toFloat() * TileSize.get())
+private fun parseTileFraction(input: String): Float {
+    if (input == "?") return -1f
+    return input.replace(',', '.').toFloat()
+}
+
+private fun tileFraction(tiles: Float): Int {
+    if (tiles < 0f) return -1
+    return Math.round(tiles * TileSize.get())
 }
 
 /**
@@ -91,7 +115,7 @@ sealed class Image(val file:Resource.ResourceFile, private val canBeNinepatch:Bo
     private fun ensureImagePrepared() {
         if (_width == -1 || _height == -1) {
             // Ninepatch
-            if (file.flags.contains("9")) {
+            if (file.flags.has(NinepatchFlag)) {
                 if (canBeNinepatch) {
                     _ninepatch = true
                 } else {
@@ -100,19 +124,13 @@ sealed class Image(val file:Resource.ResourceFile, private val canBeNinepatch:Bo
             }
 
             // Background color
-            file.flags.matchFirst(PreBlendRegex) { (color) ->
-                _backgroundColor = parseHexColor(color).toAwt()
+            file.flags.matchFirst(PreBlendPattern)?.let {
+                _backgroundColor = it
             }
 
             // Scaling
-            file.flags.matchFirst(ScalingRegex) { (algo) ->
-                for (value in ImageScaling.values()) {
-                    if (value.scalingName.equals(algo, ignoreCase = true)) {
-                        _scaling = value
-                        return@matchFirst
-                    }
-                }
-                Log.warn("Image", "Unknown scaling algorithm '$algo'")
+            file.flags.matchFirst(ScalingPattern)?.let {
+                _scaling = it
             }
 
             // Dimensions
@@ -128,28 +146,28 @@ sealed class Image(val file:Resource.ResourceFile, private val canBeNinepatch:Bo
 
             var newWidth:Int = -1
             var newHeight:Int = -1
-            file.flags.matchFirst(TileSizePattern) {
+            file.flags.matchFirst(TileSizePattern)?.let {
                 (tileWidth, tileHeight) ->
                 newWidth = tileFraction(tileWidth)
                 newHeight = tileFraction(tileHeight)
 
                 Log.debug("Image", "Size of $file determined by tile pattern to be ${newWidth}x$newHeight")
             }
-            file.flags.matchFirst(PixelSizePattern) {
+            file.flags.matchFirst(PixelSizePattern)?.let {
                 (width, height) ->
-                if (width != "?") {
+                if (width != -1) {
                     if (newWidth != -1) {
                         Log.warn("Image", "File $file has width set by both tile and by pixels! Using size by tile.")
                     } else {
-                        newWidth = width.toInt()
+                        newWidth = width
                     }
                 }
 
-                if (height != "?") {
+                if (height != -1) {
                     if (newHeight != -1) {
                         Log.warn("Image", "File $file has height set by both tile and by pixels! Using size by tile.")
                     } else {
-                        newHeight = height.toInt()
+                        newHeight = height
                     }
                 }
 
@@ -278,22 +296,54 @@ sealed class Image(val file:Resource.ResourceFile, private val canBeNinepatch:Bo
 
     abstract fun dispose()
 
-    internal class BitmapImage(file:Resource.ResourceFile) : Image(file, true) {
+    /**
+     * Decoded image is kept until [dispose], or until [ImageMemory] spills it, then it is decoded again when needed.
+     */
+    internal class BitmapImage(file:Resource.ResourceFile) : Image(file, true), ImageMemory.Spillable {
+
+        private val memory = ImageMemory.current()
 
         override fun dispose() {
-            _image = null
+            synchronized(this) {
+                memory?.untrack(this)
+                _image = null
+            }
+        }
+
+        override fun spill() {
+            synchronized(this) {
+                if (memory != null && memory.confirmEviction(this)) {
+                    _image = null
+                }
+            }
         }
 
         private var _image:BufferedImage? = null
+        /** Whether [_image] is accounted in [memory], images created by other tasks are accounted by their file */
+        private var tracked = false
+        /** Whether the ninepatch border is stripped from [_image] */
+        private var stripped = false
 
         private fun image():BufferedImage {
-            var _image = _image
-            if (_image == null) {
-                _image = ImageIO.read(file.file) ?: throw IllegalStateException("File does not exist! This shouldn't happen. (" + file.file.canonicalPath + ") " + file)
-                this._image = _image
+            synchronized(this) {
+                var _image = _image
+                if (_image == null) {
+                    // Images created by other tasks in memory don't have to be decoded
+                    val inMemory = file.image
+                    _image = inMemory ?: ImageIO.read(file.file) ?: throw IllegalStateException("File does not exist! This shouldn't happen. (" + file.file.canonicalPath + ") " + file)
+                    if (stripped) {
+                        _image = stripNinepatch(_image)
+                    }
+                    this._image = _image
+                    tracked = memory != null && _image !== inMemory
+                    if (tracked) {
+                        memory!!.track(this, ImageMemory.sizeOf(_image))
+                    }
+                } else if (tracked) {
+                    memory!!.touch(this, ImageMemory.sizeOf(_image))
+                }
+                return _image
             }
-            return _image
-
         }
 
         override fun setupDimensions() {
@@ -306,18 +356,29 @@ sealed class Image(val file:Resource.ResourceFile, private val canBeNinepatch:Bo
                 _ninepatchSplits = getSplits(image)
                 _ninepatchPads = getPads(image, _ninepatchSplits)
 
-                val strippedImage = BufferedImage(image.width - 2, image.height - 2, BufferedImage.TYPE_INT_ARGB)
-                val g = strippedImage.createGraphics()
-                g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR)
-                g.drawImage(image, 0, 0, image.width, image.height, 1, 1, image.width + 1, image.height + 1, null)
-                g.dispose()
-
-                _image = strippedImage
+                val strippedImage = stripNinepatch(image)
+                synchronized(this) {
+                    stripped = true
+                    _image = strippedImage
+                    tracked = memory != null
+                    if (tracked) {
+                        memory!!.track(this, ImageMemory.sizeOf(strippedImage))
+                    }
+                }
                 _fileWidth -= 2
                 _fileHeight -= 2
             }
         }
 
+        private fun stripNinepatch(image: BufferedImage): BufferedImage {
+            val strippedImage = BufferedImage(image.width - 2, image.height - 2, BufferedImage.TYPE_INT_ARGB)
+            val g = strippedImage.createGraphics()
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR)
+            g.drawImage(image, 0, 0, image.width, image.height, 1, 1, image.width + 1, image.height + 1, null)
+            g.dispose()
+            return strippedImage
+        }
+
         override fun image(width: Int, height: Int, background: Color?): BufferedImage {
             return resizeImage(image(), width, height, background, scaling)
         }
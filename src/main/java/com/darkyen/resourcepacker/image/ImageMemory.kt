@@ -0,0 +1,286 @@
+package com.darkyen.resourcepacker.image
+
+import com.darkyen.resourcepacker.OperationContext
+import com.darkyen.resourcepacker.SettingKey
+import java.awt.image.BufferedImage
+import java.awt.image.DataBuffer
+import java.awt.image.DataBufferByte
+import java.awt.image.DataBufferInt
+import java.io.*
+import java.util.concurrent.locks.ReentrantLock
+import javax.imageio.ImageIO
+import kotlin.concurrent.withLock
+
+val ImageMemoryBudget: SettingKey<Long> = SettingKey("ImageMemoryBudget", Runtime.getRuntime().maxMemory() / 2,
+        "How many bytes may decoded images of a packing operation take, before they are spilled to disk. Half of the heap by default.")
+
+/**
+ * Accounts memory taken by decoded images of a packing operation and keeps it under [budget].
+ *
+ * Images which can be freed and restored later ([Spillable]) are tracked in the order of use.
+ * When someone [reserve]s memory for a new image and the budget is exceeded, least recently used images are spilled.
+ * When that is not enough, because the memory is reserved by images which are being created,
+ * [reserve] waits until they are done, so parallel tasks slow down instead of running out of memory.
+ *
+ * Obtain the memory of the current operation through [current].
+ */
+class ImageMemory internal constructor(val budget: Long, spillDirectory: () -> File) {
+
+    /** Decoded image, whose memory can be freed and restored later. */
+    interface Spillable {
+        /**
+         * Frees the memory of the image, but only if [confirmEviction] returns true.
+         * Called without any locks held, possibly from other thread.
+         */
+        fun spill()
+    }
+
+    private val spillDirectory by lazy(spillDirectory)
+
+    private val lock = ReentrantLock()
+    private val released = lock.newCondition()
+
+    /** Bytes of tracked spillables, in access order, least recently used first */
+    private val resident = LinkedHashMap<Spillable, Long>(64, 0.75f, true)
+    /** Spillables chosen to be spilled, which were not used since */
+    private val evicting = HashSet<Spillable>()
+
+    private var used = 0L
+    private var reserved = 0L
+
+    /**
+     * Reserves [bytes] for an image, which is about to be created, spilling other images if needed.
+     * Blocks while the memory is over the budget, because of other reservations.
+     * Must be followed by [release], must not be nested and must not be called while holding a lock of any [Spillable].
+     */
+    fun reserve(bytes: Long) {
+        val victims = ArrayList<Spillable>()
+        while (true) {
+            lock.withLock {
+                while (used + bytes > budget) {
+                    val iterator = resident.entries.iterator()
+                    if (!iterator.hasNext()) break
+                    val victim = iterator.next()
+                    iterator.remove()
+                    used -= victim.value
+                    evicting.add(victim.key)
+                    victims.add(victim.key)
+                }
+
+                if (victims.isEmpty()) {
+                    if (used + bytes <= budget || reserved == 0L) {
+                        // When nothing else is reserved, waiting would not help
+                        reserved += bytes
+                        used += bytes
+                        return
+                    }
+                    released.await()
+                }
+            }
+
+            for (victim in victims) {
+                victim.spill()
+            }
+            victims.clear()
+        }
+    }
+
+    /** Releases [bytes] reserved by [reserve]. Created image should be tracked by then, if it is kept. */
+    fun release(bytes: Long) {
+        lock.withLock {
+            reserved -= bytes
+            used -= bytes
+            released.signalAll()
+        }
+    }
+
+    /** Starts accounting [bytes] of the [spillable], which is now in memory. */
+    fun track(spillable: Spillable, bytes: Long) {
+        lock.withLock {
+            evicting.remove(spillable)
+            val previous = resident.put(spillable, bytes)
+            used += bytes - (previous ?: 0L)
+        }
+    }
+
+    /** Marks [spillable] as used, so it is spilled later than others. */
+    fun touch(spillable: Spillable, bytes: Long) {
+        lock.withLock {
+            if (resident[spillable] == null) {
+                // Was about to be spilled
+                evicting.remove(spillable)
+                resident[spillable] = bytes
+                used += bytes
+            }
+        }
+    }
+
+    /** Stops accounting the [spillable], because it has been freed. */
+    fun untrack(spillable: Spillable) {
+        lock.withLock {
+            evicting.remove(spillable)
+            val bytes = resident.remove(spillable) ?: return
+            used -= bytes
+            released.signalAll()
+        }
+    }
+
+    /**
+     * Called by [Spillable.spill].
+     * @return true if the spillable should free its memory now, false if it has been used since it was chosen
+     */
+    fun confirmEviction(spillable: Spillable): Boolean {
+        lock.withLock {
+            return evicting.remove(spillable)
+        }
+    }
+
+    /** @return new file in which [Spillable]s can store their images */
+    fun newSpillFile(): File {
+        return File.createTempFile("spill", ".bin", spillDirectory)
+    }
+
+    companion object {
+        /** @return memory of the packing operation running on this thread, or null when not running in any */
+        @JvmStatic
+        fun current(): ImageMemory? {
+            return OperationContext.current.get()?.imageMemory
+        }
+
+        /** @return approximate number of bytes taken by the [image] */
+        @JvmStatic
+        fun sizeOf(image: BufferedImage): Long {
+            val buffer = image.raster.dataBuffer
+            return buffer.size.toLong() * buffer.numBanks * (DataBuffer.getDataTypeSize(buffer.dataType) / 8)
+        }
+
+        /** @return number of bytes taken by an 8-bit RGBA image of given size */
+        @JvmStatic
+        fun sizeOf(width: Int, height: Int): Long {
+            return width.toLong() * height.toLong() * 4L
+        }
+    }
+}
+
+/**
+ * Image held in [memory], which is spilled to disk when the memory is over its budget and loaded back when needed.
+ * The image must not be changed after it is given to this.
+ *
+ * @param memory to account the image in, if null, the image is always kept in memory
+ */
+class SpillableImage(private val memory: ImageMemory?, image: BufferedImage) : ImageMemory.Spillable {
+
+    private val width = image.width
+    private val height = image.height
+    private val bytes = ImageMemory.sizeOf(image)
+
+    private var image: BufferedImage? = image
+    /** Image stays the same, so it is spilled only once */
+    private var spillFile: File? = null
+    /** Type of data in [spillFile], see [saveImageData] */
+    private var spillType = 0
+
+    init {
+        memory?.track(this, bytes)
+    }
+
+    /** @return the image, loaded back if it has been spilled */
+    fun get(): BufferedImage {
+        synchronized(this) {
+            val image = image
+            if (image != null) {
+                memory?.touch(this, bytes)
+                return image
+            }
+        }
+
+        // Was spilled, so memory can't be null
+        memory!!.reserve(bytes)
+        try {
+            synchronized(this) {
+                var image = image
+                if (image == null) {
+                    image = loadImageData(spillFile!!, width, height, spillType)
+                    this.image = image
+                    memory.track(this, bytes)
+                } else {
+                    memory.touch(this, bytes)
+                }
+                return image
+            }
+        } finally {
+            memory.release(bytes)
+        }
+    }
+
+    override fun spill() {
+        synchronized(this) {
+            if (memory == null || !memory.confirmEviction(this)) return
+            val image = image ?: return
+            if (spillFile == null) {
+                val file = memory.newSpillFile()
+                spillType = saveImageData(image, file)
+                spillFile = file
+            }
+            this.image = null
+        }
+    }
+
+    /** Frees the image and its spill file. */
+    fun dispose() {
+        synchronized(this) {
+            memory?.untrack(this)
+            image = null
+            spillFile?.delete()
+            spillFile = null
+        }
+    }
+}
+
+/**
+ * Writes pixels of the [image] into the [file], raw for common types, which is much faster than any format, otherwise as PNG.
+ * @return type to give to [loadImageData], with the size of the image, to read it back
+ */
+internal fun saveImageData(image: BufferedImage, file: File): Int {
+    // Subimages share data of their parent
+    val type = if (image.raster.parent == null) image.type else BufferedImage.TYPE_CUSTOM
+    when (type) {
+        BufferedImage.TYPE_4BYTE_ABGR -> {
+            val data = (image.raster.dataBuffer as DataBufferByte).data
+            BufferedOutputStream(FileOutputStream(file)).use { it.write(data) }
+        }
+        BufferedImage.TYPE_INT_ARGB -> {
+            val data = (image.raster.dataBuffer as DataBufferInt).data
+            DataOutputStream(BufferedOutputStream(FileOutputStream(file))).use { out ->
+                for (pixel in data) {
+                    out.writeInt(pixel)
+                }
+            }
+        }
+        else -> ImageIO.write(image, "png", file)
+    }
+    return type
+}
+
+/** Reads pixels written by [saveImageData]. */
+internal fun loadImageData(file: File, width: Int, height: Int, type: Int): BufferedImage {
+    when (type) {
+        BufferedImage.TYPE_4BYTE_ABGR -> {
+            val image = BufferedImage(width, height, type)
+            val data = (image.raster.dataBuffer as DataBufferByte).data
+            DataInputStream(BufferedInputStream(FileInputStream(file))).use { it.readFully(data) }
+            return image
+        }
+        BufferedImage.TYPE_INT_ARGB -> {
+            val image = BufferedImage(width, height, type)
+            val data = (image.raster.dataBuffer as DataBufferInt).data
+            DataInputStream(BufferedInputStream(FileInputStream(file))).use { input ->
+                for (i in data.indices) {
+                    data[i] = input.readInt()
+                }
+            }
+            return image
+        }
+        else -> return ImageIO.read(file) ?: throw IOException("Image $file could not be read")
+    }
+}
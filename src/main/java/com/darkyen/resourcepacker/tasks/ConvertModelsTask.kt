@@ -1,5 +1,6 @@
 package com.darkyen.resourcepacker.tasks
 
+import com.darkyen.resourcepacker.FlagPattern
 import com.darkyen.resourcepacker.Resource.ResourceFile
 import com.darkyen.resourcepacker.Task
 import com.darkyen.resourcepacker.util.*
@@ -86,21 +87,19 @@ object ConvertModelsTask : Task() {
         }
     }
 
-    private val OptionsRegex = Regex("options ?((?:\\w| |-)+)")
+    private val OptionsPattern = FlagPattern(Regex("options ?((?:\\w| |-)+)")) { (opts) -> opts.trim() }
 
-    private val ConversionOptionsRegex = Regex("to (fbx|g3dj|g3db)")
+    private val ConversionOptionsPattern = FlagPattern(Regex("to (fbx|g3dj|g3db)")) { (format) -> format.toUpperCase() }
+
+    override val triggerExtensions: Set<String>? = setOf("obj", "fbx")
 
     override fun operate(file: ResourceFile): Boolean {
         if (file.extension != "obj" && file.extension != "fbx") return false
         val isObj = file.extension == "obj"
 
-        val options = file.flags.matchFirst(OptionsRegex) { (opts) ->
-            opts.trim()
-        } ?: ""
+        val options = file.flags.matchFirst(OptionsPattern) ?: ""
 
-        val convertTo = file.flags.matchFirst(ConversionOptionsRegex) { (format) ->
-            format.toUpperCase()
-        } ?: return false
+        val convertTo = file.flags.matchFirst(ConversionOptionsPattern) ?: return false
 
         if (isObj) copyObjAndDepsWithoutSpaces(file)
 
@@ -1,5 +1,6 @@
 package com.darkyen.resourcepacker.tasks
 
+import com.darkyen.resourcepacker.Flag
 import com.darkyen.resourcepacker.Resource.ResourceDirectory
 import com.darkyen.resourcepacker.Resource.ResourceFile
 import com.darkyen.resourcepacker.Task
@@ -17,7 +18,11 @@ import com.esotericsoftware.minlog.Log
  */
 object CreateAppleStringsTask : Task() {
 
-    val CreateStringsFlag = "AppleStrings".toLowerCase()
+    override val local: Boolean = true
+
+    val CreateStringsFlag = Flag.of("AppleStrings".toLowerCase())
+
+    override val triggerFlags: Set<String>? = setOf(CreateStringsFlag.text)
 
     fun escape(text: String): CharSequence {
         val result = StringBuilder()
@@ -34,7 +39,7 @@ object CreateAppleStringsTask : Task() {
     }
 
     override fun operate(directory: ResourceDirectory): Boolean {
-        if (directory.flags.contains(CreateStringsFlag)) {
+        if (directory.flags.has(CreateStringsFlag)) {
             val strings = StringBuilder()
 
             directory.forEachFile { stringFile ->
@@ -50,7 +55,7 @@ object CreateAppleStringsTask : Task() {
             val resourceFile = ResourceFile(
                     resultJavaFile, directory.parent,
                     directory.name,
-                    directory.flags.filterNot { it == CreateStringsFlag }.toMutableList(),
+                    directory.flags.filterNot { it == CreateStringsFlag.text }.toMutableList(),
                     "strings")
             directory.parent.addChild(resourceFile)
 
@@ -2,6 +2,8 @@ package com.darkyen.resourcepacker.tasks
 
 import com.badlogic.gdx.graphics.Color
 import com.badlogic.gdx.utils.IntSet
+import com.darkyen.resourcepacker.Flag
+import com.darkyen.resourcepacker.FlagPattern
 import com.darkyen.resourcepacker.Resource.ResourceFile
 import com.darkyen.resourcepacker.Task
 import com.darkyen.resourcepacker.isFont
@@ -36,49 +38,62 @@ object CreateFontsTask : Task() {
     /* Example:
      * 14          => Size 14
      */
-    private val SizeRegex = Regex("(\\d+)")
+    private val SizePattern = FlagPattern(Regex("(\\d+)")) { (size) -> size.toInt() }
 
     /* Example:
      * 56-67     => Glyphs 56 to 67 (decimal, inclusive) should be added
      */
-    private val GlyphRangeRegex = Regex("(\\d+)-(\\d+)")
+    private val GlyphRangePattern = FlagPattern(Regex("(\\d+)-(\\d+)")) { (start, end) -> start.toInt()..end.toInt() }
 
     /* Example:
      * outline 4 FF0000 miter   => Will create solid red 4px outline with miter joins
      */
-    private val OutlineRegex = Regex("outline (\\d+) $ColorRegexGroup ?(\\w+)?")
+    private val OutlinePattern = FlagPattern(Regex("outline (\\d+) $ColorRegexGroup ?(\\w+)?")) { (width, hexColor, optJoin) ->
+        Outline(width.toFloat(), parseHexColor(hexColor), "straight".equals(optJoin, ignoreCase = true))
+    }
     //outline (\\d+) ([0-9A-Fa-f]{3,8}) ?(\\w+)?
 
+    private class Outline(val width: Float, val color: Color, val straight: Boolean)
+
     /** Matches bg#RRGGBBAA colors for background. Default is Transparent. */
-    private val BGRegex = Regex("bg#$ColorRegexGroup")
+    private val BGPattern = FlagPattern(Regex("bg#$ColorRegexGroup")) { (hexColor) -> parseHexColor(hexColor) }
     /** Matches bg#RRGGBBAA colors for foreground (color of font). Default is White. */
-    private val FGRegex = Regex("fg#$ColorRegexGroup")
+    private val FGPattern = FlagPattern(Regex("fg#$ColorRegexGroup")) { (hexColor) -> parseHexColor(hexColor) }
+
+    private val STBFontFlag = Flag.of("stbfont")
+
+    override val cacheVersion: Int = 1
+
+    override val parallel: Boolean = true
+
+    override val local: Boolean = true
+
+    override val consumes: Set<String>? = setOf("ttf", "otf")
+
+    override val produces: Set<String>? = setOf("png", "fnt", "stbfont")
+
+    override val triggerExtensions: Set<String>? = setOf("ttf", "otf")
 
     fun packFreeTypeFont(file: ResourceFile, size:Int) {
         val parameter = FreeTypeFontParameter()
         parameter.fontName = file.name
         parameter.size = size
 
-        for (param in file.flags) {
-            val (width, hexColor, optJoin) = OutlineRegex.matchEntire(param) ?: continue
-            parameter.borderWidth = width.toFloat()
-            parameter.borderColor = parseHexColor(hexColor)
-            parameter.borderStraight = "straight".equals(optJoin, ignoreCase = true)
-            break
+        // Parsed colors are shared by all files with the same flag, so they are copied before use
+        file.flags.matchFirst(OutlinePattern, warnIfMore = false)?.let { outline ->
+            parameter.borderWidth = outline.width
+            parameter.borderColor = Color(outline.color)
+            parameter.borderStraight = outline.straight
         }
 
-        for (param in file.flags) {
-            val (hexColor) = FGRegex.matchEntire(param) ?: continue
-            parameter.color = parseHexColor(hexColor)
-            break
+        file.flags.matchFirst(FGPattern, warnIfMore = false)?.let { color ->
+            parameter.color = Color(color)
         }
 
         val glyphsToAdd = IntSet()
-        for (p in file.flags) {
-            val (start, end) = GlyphRangeRegex.matchEntire(p) ?: continue
-
-            val from = start.toInt()
-            val to = end.toInt()
+        file.flags.matchAll(GlyphRangePattern) { range ->
+            val from = range.first
+            val to = range.last
             for (i in from..to) {
                 glyphsToAdd.add(i)
             }
@@ -100,11 +115,12 @@ object CreateFontsTask : Task() {
         Log.info(Name, "Font created. $file")
         file.parent.removeChild(file)
 
-        var bgColor: Color? = null
-        for (param in file.flags) {
-            bgColor = parseHexColor(BGRegex.matchEntire(param)?.groupValues?.get(1) ?: continue)
+        var bgColorFlag: Color? = null
+        file.flags.matchAll(BGPattern) { color ->
+            bgColorFlag = color
             Log.debug(Name, "Background color for font set. $file")
         }
+        val bgColor = bgColorFlag
 
         for (generatedJavaFile in packedFiles) {
             if (generatedJavaFile.getExtension().equals("png", ignoreCase = true)) {
@@ -133,12 +149,8 @@ object CreateFontsTask : Task() {
         if (file.isFont()) {
             var size: Int = -1
 
-            for (flag in file.flags) {
-                val sizeMatch = SizeRegex.matchEntire(flag)
-                if (sizeMatch != null) {
-                    size = sizeMatch.groupValues[1].toInt()
-                    continue
-                }
+            file.flags.matchAll(SizePattern) { flagSize ->
+                size = flagSize
             }
 
             if (size < 0) {
@@ -146,7 +158,7 @@ object CreateFontsTask : Task() {
             } else if (size == 0) {
                 Log.error(Name, "Size must be bigger than 0. $file")
             } else {
-                if (file.flags.contains("stbfont")) {
+                if (file.flags.has(STBFontFlag)) {
                     packStbFont(file, size)
                 } else {
                     packFreeTypeFont(file, size)
@@ -2,8 +2,8 @@ package com.darkyen.resourcepacker.tasks
 
 import com.darkyen.resourcepacker.Resource.ResourceFile
 import com.darkyen.resourcepacker.Task
+import com.darkyen.resourcepacker.TaskCache
 import com.darkyen.resourcepacker.image.createImage
-import com.darkyen.resourcepacker.image.saveToFile
 import com.esotericsoftware.minlog.Log
 
 /**
@@ -113,6 +113,17 @@ object CreateIOSIconTask : Task() {
             IconType(100, "Icon-Small-50@2x")
     )
 
+    override val cacheVersion: Int = 1
+
+    override val local: Boolean = true
+
+    override fun cacheDependencies(file: ResourceFile, key: TaskCache.Key) {
+        // Icons which already exist are not created
+        for (sibling in file.parent.files.map { it.name }.sorted()) {
+            key.add(sibling)
+        }
+    }
+
     fun collectIconTypes(flag: String, base: Array<IconType>, small: Array<IconType>, artwork: Array<IconType>): List<IconType> {
         val result = arrayListOf(*base)
         if (flag.contains(SmallFlagAppendage)) {
@@ -148,11 +159,11 @@ object CreateIOSIconTask : Task() {
             file.removeFromParent()
 
             for ((size, filename, stripExtension) in iconTypes) {
-                if (file.parent.files.find { it.name == filename } == null) {
+                if (!file.parent.hasFileNamed(filename)) {
                     val resizedFile = newBlankFile(filename, "png")
-                    image.image(width = size, height = size).saveToFile(resizedFile, "png")
+                    val resizedImage = image.image(width = size, height = size)
 
-                    val singleIconFile = ResourceFile(resizedFile, file.parent, filename, transitiveFlags, if (stripExtension) "" else "png")
+                    val singleIconFile = ResourceFile(resizedFile, file.parent, filename, transitiveFlags, if (stripExtension) "" else "png", resizedImage)
                     file.parent.addChild(singleIconFile)
 
                     Log.debug(Name, "Icon file $singleIconFile created")
@@ -1,5 +1,6 @@
 package com.darkyen.resourcepacker.tasks
 
+import com.darkyen.resourcepacker.Flag
 import com.darkyen.resourcepacker.Resource.ResourceDirectory
 import com.darkyen.resourcepacker.Task
 import com.esotericsoftware.minlog.Log
@@ -12,8 +13,14 @@ object FlattenTask : Task() {
 
     override val repeating: Boolean = true
 
+    override val local: Boolean = true
+
+    override val triggerFlags: Set<String>? = setOf("flatten")
+
+    private val FlattenFlag = Flag.of("flatten")
+
     override fun operate(directory: ResourceDirectory): Boolean {
-        if (directory.flags.contains("flatten")) {
+        if (directory.flags.has(FlattenFlag)) {
             flatten(directory)
             Log.info(Name, "Directory flattened. ($directory)")
             return true
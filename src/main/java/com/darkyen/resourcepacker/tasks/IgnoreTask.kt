@@ -1,5 +1,6 @@
 package com.darkyen.resourcepacker.tasks
 
+import com.darkyen.resourcepacker.Flag
 import com.darkyen.resourcepacker.Resource.ResourceDirectory
 import com.darkyen.resourcepacker.Resource.ResourceFile
 import com.darkyen.resourcepacker.Task
@@ -11,8 +12,14 @@ import com.esotericsoftware.minlog.Log
  */
 object IgnoreTask : Task() {
 
+    override val local: Boolean = true
+
+    override val triggerFlags: Set<String>? = setOf("ignore")
+
+    private val IgnoreFlag = Flag.of("ignore")
+
     override fun operate(file: ResourceFile): Boolean {
-        if (file.flags.contains("ignore")) {
+        if (file.flags.has(IgnoreFlag)) {
             file.removeFromParent()
             Log.info(Name, "File ignored. ($file)")
             return true
@@ -22,7 +29,7 @@ object IgnoreTask : Task() {
     }
 
     override fun operate(directory: ResourceDirectory): Boolean {
-        if (directory.flags.contains("ignore")) {
+        if (directory.flags.has(IgnoreFlag)) {
             directory.parent.removeChild(directory)
             Log.info(Name, "Directory ignored. ($directory)")
             return true
@@ -3,11 +3,16 @@ package com.darkyen.resourcepacker.tasks
 import com.badlogic.gdx.graphics.Texture.TextureFilter.Linear
 import com.badlogic.gdx.utils.Json
 import com.badlogic.gdx.utils.JsonReader
+import com.darkyen.resourcepacker.Flag
+import com.darkyen.resourcepacker.OperationContext
+import com.darkyen.resourcepacker.ParallelTasks
+import com.darkyen.resourcepacker.FlagPattern
 import com.darkyen.resourcepacker.Resource
 import com.darkyen.resourcepacker.Resource.ResourceDirectory
 import com.darkyen.resourcepacker.Task
 import com.darkyen.resourcepacker.image.createImage
 import com.darkyen.resourcepacker.isImage
+import com.darkyen.resourcepacker.util.component1
 import com.darkyen.resourcepacker.util.texturepacker.MultiScaleTexturePacker
 import com.darkyen.resourcepacker.util.texturepacker.MultiScaleTexturePacker.Settings
 import com.esotericsoftware.minlog.Log
@@ -36,21 +41,27 @@ import java.io.FileReader
  */
 object PackTask : Task() {
 
-    private val ScalesRegex = Regex("@([1-9]+[0-9]*)x")
+    override val local: Boolean = true
+
+    override val triggerFlags: Set<String>? = setOf("pack")
+
+    private val PackFlag = Flag.of("pack")
+
+    /** Matches flags `@Nx`, where N is a scale factor */
+    internal val ScalePattern = FlagPattern(Regex("@([1-9]+[0-9]*)x")) { (scale) -> scale.toInt() }
 
     private val ScaledNameRegex = Regex("(.+)@([1-9]+[0-9]*)x?")
 
-    private val json = Json()
-    private val jsonReader = JsonReader()
+    override val cacheVersion: Int = 1
 
     override fun operate(directory: ResourceDirectory): Boolean {
-        if (!directory.flags.contains("pack")) {
+        if (!directory.flags.has(PackFlag)) {
             return false
         }
 
         val settings = Settings()
-        settings.limitMemory = false
         settings.useIndexes = false
+        settings.parallel = ParallelTasks.get()
         settings.filterMag = Linear
         settings.filterMin = settings.filterMag
         settings.pot = true //Seems that it is still better for performance and whatnot
@@ -63,9 +74,12 @@ object PackTask : Task() {
         settings.alphaThreshold = 0
         settings.ignoreBlankImages = false
         //settings.debug = true
+        val inputFiles = ArrayList<Resource.ResourceFile>()
         for (packFile in directory.files) {
             if (packFile.name == "pack" && packFile.extension == "json") {
-                json.readFields(settings, jsonReader.parse(FileReader(packFile.file)))
+                // Not shared, directories may be packed at the same time
+                Json().readFields(settings, JsonReader().parse(FileReader(packFile.file)))
+                inputFiles.add(packFile)
                 directory.removeChild(packFile)
                 if (Log.DEBUG) Log.debug(Name, "Json packer settings loaded. " + packFile.file.canonicalPath)
                 break
@@ -82,9 +96,7 @@ object PackTask : Task() {
 
         val scales = com.badlogic.gdx.utils.IntArray()
         scales.add(1)
-        for (flag in directory.flags) {
-            val scaleMatch = ScalesRegex.matchEntire(flag) ?: continue
-            val scale = scaleMatch.groupValues[1].toInt()
+        directory.flags.matchAll(ScalePattern) { scale ->
             if (!scales.contains(scale)) {
                 scales.add(scale)
             }
@@ -93,6 +105,10 @@ object PackTask : Task() {
         settings.scales = scales.toArray()
 
         val packer = MultiScaleTexturePacker(settings)
+        // Threads of other pools would not see the operation
+        packer.setPool(OperationContext.get().pool)
+        // Sizes of images change less often than their pixels
+        packer.setLayoutFile(stateFile("layout/${directory.virtualPath()}"))
         directory.forEachFile(filter = { it.isImage() }) { image ->
             var name = image.name
             var scale = 1
@@ -106,12 +122,20 @@ object PackTask : Task() {
             packer.addImage(name, -1, scale, image.createImage())
 
             if (Log.DEBUG) Log.debug(Name, "Image added to pack. $image")
+            inputFiles.add(image)
             directory.removeChild(image)
         }
 
         val atlasName = directory.name
-        val outputFolder = newFolder()
-        packer.pack(outputFolder, atlasName)
+        val outputFolder = newCachedFolder({ key ->
+            key.addParents(directory)
+            inputFiles.sortWith(compareBy({ it.name }, { it.extension }, { it.flags.joinToString(".") }))
+            for (inputFile in inputFiles) {
+                key.add(inputFile)
+            }
+        }) { folder ->
+            packer.pack(folder, atlasName)
+        }
 
 
         for (outputJavaFile in outputFolder.listFiles() ?: emptyArray()) {
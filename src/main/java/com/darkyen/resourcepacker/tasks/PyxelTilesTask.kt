@@ -1,13 +1,16 @@
 package com.darkyen.resourcepacker.tasks
 
 import com.badlogic.gdx.utils.StreamUtils
+import com.darkyen.resourcepacker.Flag
 import com.darkyen.resourcepacker.Resource.ResourceFile
 import com.darkyen.resourcepacker.Task
+import com.darkyen.resourcepacker.image.NinepatchFlag
 import com.darkyen.resourcepacker.image.createImage
+import java.io.ByteArrayInputStream
 import java.io.File
-import java.io.FileOutputStream
 import java.util.zip.ZipEntry
 import java.util.zip.ZipFile
+import javax.imageio.ImageIO
 
 /**
  * Extracts tiles from .pyxel archives tagged with .tiles. and .ui-tiles.
@@ -18,12 +21,23 @@ object PyxelTilesTask : Task() {
 
     val TileExtension = ".png"
 
+    override val cacheVersion: Int = 1
+
+    override val parallel: Boolean = true
+
+    override val local: Boolean = true
+
+    override val triggerFlags: Set<String>? = setOf("tiles", "ui-tiles")
+
+    private val TilesFlag = Flag.of("tiles")
+    private val UITilesFlag = Flag.of("ui-tiles")
+
     /** Do your work here.
      * Called once for each file remaining in virtual working filesystem, per run.
      * @return whether the operation did something or not */
     override fun operate(file: ResourceFile): Boolean {
-        val uiTiles = file.flags.contains("ui-tiles")
-        if (!file.flags.contains("tiles") && !uiTiles) {
+        val uiTiles = file.flags.has(UITilesFlag)
+        if (!file.flags.has(TilesFlag) && !uiTiles) {
             return false
         }
 
@@ -31,25 +45,24 @@ object PyxelTilesTask : Task() {
         fun tile(id: Int): ZipEntry? = zip.getEntry("tile$id$TileExtension")
         val tileStoreFolder = newFolder()
 
-        val copyBuffer = ByteArray(StreamUtils.DEFAULT_BUFFER_SIZE)
-
         var id = 0
         var entry: ZipEntry? = tile(id)
         while (entry != null) {
             val resultFile = File(tileStoreFolder, "${file.name}$id$TileExtension")
             val entryInput = zip.getInputStream(entry)
-
-            val resultFileOutput = FileOutputStream(resultFile, false)
-            StreamUtils.copyStream(entryInput, resultFileOutput, copyBuffer)
+            val tileBytes = StreamUtils.copyStreamToByteArray(entryInput, entry.size.toInt())
             StreamUtils.closeQuietly(entryInput)
-            StreamUtils.closeQuietly(resultFileOutput)
+            resultFile.writeBytes(tileBytes)
 
-            val resource = file.parent.addChild(resultFile)
-            if (resource != null && uiTiles && resource is ResourceFile) {
+            if (uiTiles) {
+                // Decoded only once, tasks which pack the tile get the decoded image
+                val resource = file.parent.addChild(ResourceFile(resultFile, file.parent, ImageIO.read(ByteArrayInputStream(tileBytes))))
                 val image = resource.createImage()
                 if (image != null && image.couldBeNinepatch()) {
-                    resource.flags.add("9")
+                    resource.flags.add(NinepatchFlag.text)
                 }
+            } else {
+                file.parent.addChild(resultFile)
             }
 
             id += 1
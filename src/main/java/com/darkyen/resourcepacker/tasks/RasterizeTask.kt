@@ -1,14 +1,14 @@
 package com.darkyen.resourcepacker.tasks
 
 import com.badlogic.gdx.utils.IntArray
+import com.darkyen.resourcepacker.Flag
 import com.darkyen.resourcepacker.Resource.ResourceFile
 import com.darkyen.resourcepacker.Task
+import com.darkyen.resourcepacker.image.Image
+import com.darkyen.resourcepacker.image.ImageMemory
 import com.darkyen.resourcepacker.image.createImage
-import com.darkyen.resourcepacker.image.saveToFile
 import com.darkyen.resourcepacker.isImage
-import com.darkyen.resourcepacker.util.component1
 import com.darkyen.resourcepacker.util.forEach
-import com.darkyen.resourcepacker.util.matchAll
 import com.esotericsoftware.minlog.Log
 import java.awt.Color
 import java.awt.RenderingHints
@@ -32,20 +32,35 @@ import java.awt.image.BufferedImage
  */
 object RasterizeTask : Task() {
 
-    private val ScaledFactorSpecifierPattern = Regex("""@([1-9]+[0-9]*)x""")
+    private val RasterizeFlag = Flag.of("rasterize")
+    private val RasterizeShortFlag = Flag.of("r")
+    private val ScaledFlag = Flag.of("scaled")
+
+    override val cacheVersion: Int = 1
+
+    override val parallel: Boolean = true
+
+    override val local: Boolean = true
+
+    override val consumes: Set<String>? = setOf("png", "jpg", "jpeg", "gif", "bmp", "svg", "svgz")
+
+    override val produces: Set<String>? = setOf("png")
+
+    override val triggerFlags: Set<String>? = setOf("rasterize", "r")
+
+    override val triggerExtensions: Set<String>? = consumes
 
     override fun operate(file: ResourceFile): Boolean {
-        if (!file.isImage() || !(file.flags.contains("rasterize") || file.flags.contains("r"))) {
+        if (!file.isImage() || !(file.flags.has(RasterizeFlag) || file.flags.has(RasterizeShortFlag))) {
             return false
         }
 
         val scales = IntArray()
         scales.add(1)
-        if (file.flags.contains("scaled")) {
+        if (file.flags.has(ScaledFlag)) {
             var parent = file.parent
             while (true) {
-                parent.flags.matchAll(ScaledFactorSpecifierPattern) { (factorStr) ->
-                    val factor = factorStr.toInt()
+                parent.flags.matchAll(PackTask.ScalePattern) { factor ->
                     if (!scales.contains(factor)) {
                         scales.add(factor)
                     }
@@ -62,39 +77,50 @@ object RasterizeTask : Task() {
         val image = file.createImage()!!
         file.removeFromParent()
 
+        val memory = ImageMemory.current()
         scales.forEach { scale ->
-            var bitmap = image.image(image.width * scale, image.height * scale)
-            if (image.ninepatch) {
-                // Add ninepatch data to the image
-                val ninepatch = BufferedImage(bitmap.width + 2, bitmap.height + 2, BufferedImage.TYPE_INT_ARGB)
-                val g = ninepatch.createGraphics()
-                g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR)
-
-                g.drawImage(bitmap, 1, 1, bitmap.width, bitmap.height, null)
-
-                val splits = image.ninepatchSplits(bitmap.width, bitmap.height)!!
-                g.color = Color.BLACK
-                g.fillRect(1+splits[0], 0, bitmap.width - splits[1] - splits[0], 1)
-                g.fillRect(0, 1 + splits[2], 1,bitmap.height - splits[3] - splits[2])
-
-                val pads = image.ninepatchPads(bitmap.width, bitmap.height)
-                if (pads != null) {
-                    g.fillRect(1+pads[0], ninepatch.height - 1, bitmap.width - pads[1] - pads[0], 1)
-                    g.fillRect(ninepatch.width - 1, 1 + pads[2], 1,bitmap.height - pads[3] - pads[2])
-                }
+            // Waits when other tasks are holding too many images, reserved memory is tracked by the created file
+            val bytes = ImageMemory.sizeOf(image.width * scale + 2, image.height * scale + 2)
+            memory?.reserve(bytes)
+            try {
+                rasterize(file, image, scale)
+            } finally {
+                memory?.release(bytes)
+            }
+        }
 
-                g.dispose()
+        return true
+    }
 
-                bitmap = ninepatch
+    private fun rasterize(file: ResourceFile, image: Image, scale: Int) {
+        var bitmap = image.image(image.width * scale, image.height * scale)
+        if (image.ninepatch) {
+            // Add ninepatch data to the image
+            val ninepatch = BufferedImage(bitmap.width + 2, bitmap.height + 2, BufferedImage.TYPE_INT_ARGB)
+            val g = ninepatch.createGraphics()
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR)
+
+            g.drawImage(bitmap, 1, 1, bitmap.width, bitmap.height, null)
+
+            val splits = image.ninepatchSplits(bitmap.width, bitmap.height)!!
+            g.color = Color.BLACK
+            g.fillRect(1+splits[0], 0, bitmap.width - splits[1] - splits[0], 1)
+            g.fillRect(0, 1 + splits[2], 1,bitmap.height - splits[3] - splits[2])
+
+            val pads = image.ninepatchPads(bitmap.width, bitmap.height)
+            if (pads != null) {
+                g.fillRect(1+pads[0], ninepatch.height - 1, bitmap.width - pads[1] - pads[0], 1)
+                g.fillRect(ninepatch.width - 1, 1 + pads[2], 1,bitmap.height - pads[3] - pads[2])
             }
 
-            val resultFile = newFileNamed(file, file.name + (if (scale == 1) "" else "@" + scale + "x"), "png")
-            bitmap.saveToFile(resultFile, "png")
+            g.dispose()
 
-            file.parent.addChild(resultFile)
-            Log.info(Name, "$file rasterized @ ${scale}x")
+            bitmap = ninepatch
         }
 
-        return true
+        // Written only if it reaches the output, tasks which pack it use the bitmap directly
+        val resultFile = newFileNamed(file, file.name + (if (scale == 1) "" else "@" + scale + "x"), "png")
+        file.parent.addChild(ResourceFile(resultFile, file.parent, bitmap))
+        Log.info(Name, "$file rasterized @ ${scale}x")
     }
 }
@@ -1,5 +1,6 @@
 package com.darkyen.resourcepacker.tasks
 
+import com.darkyen.resourcepacker.Flag
 import com.darkyen.resourcepacker.Resource
 import com.darkyen.resourcepacker.Task
 import com.esotericsoftware.minlog.Log
@@ -10,8 +11,12 @@ import com.esotericsoftware.minlog.Log
  */
 object RemoveEmptyDirectoriesTask : Task() {
 
+    override val local: Boolean = true
+
+    private val RetainFlag = Flag.of("retain")
+
     override fun operate(directory: Resource.ResourceDirectory): Boolean {
-        if (!directory.hasChildren() && !directory.flags.contains("retain")) {
+        if (!directory.hasChildren() && !directory.flags.has(RetainFlag)) {
             Log.info(Name, "Empty directory removed. $directory")
             directory.parent.removeChild(directory)
             return true
@@ -1,5 +1,6 @@
 package com.darkyen.resourcepacker.tasks
 
+import com.darkyen.resourcepacker.FlagPattern
 import com.darkyen.resourcepacker.Resource
 import com.darkyen.resourcepacker.Task
 
@@ -17,9 +18,27 @@ import com.darkyen.resourcepacker.Task
  */
 object TransitiveFlagTask : Task() {
 
-    val Direct = Regex("\\* (.*)")
-    val All = Regex("\\*\\* (.*)")
-    val N = Regex("\\*(\\d+) (.*)")
+    override val local: Boolean = true
+
+    private val Direct = Regex("\\* (.*)")
+    private val All = Regex("\\*\\* (.*)")
+    private val N = Regex("\\*(\\d+) (.*)")
+
+    /** Parses transitive flags to the number of layers and the applied flag */
+    val TransitivePattern = FlagPattern { flag ->
+        val directMatch = Direct.matchEntire(flag)
+        val allMatch = All.matchEntire(flag)
+        val nMatch = N.matchEntire(flag)
+
+        if (directMatch != null) {
+            Pair(1, directMatch.groupValues[1])
+        } else if (allMatch != null) {
+            Pair(Int.MAX_VALUE, allMatch.groupValues[1])
+        } else if (nMatch != null) {
+            val layers = nMatch.groupValues[1].toInt()
+            if (layers == 0) null else Pair(layers, nMatch.groupValues[2])
+        } else null
+    }
 
     fun applyFlagToSubdirectories(directory: Resource.ResourceDirectory, flag:String, remainingLayers:Int) {
         for (file in directory.files) {
@@ -40,26 +59,7 @@ object TransitiveFlagTask : Task() {
     override fun operate(directory: Resource.ResourceDirectory): Boolean {
         var operated = false
 
-        for (flag in directory.flags) {
-            val directMatch = Direct.matchEntire(flag)
-            val allMatch = All.matchEntire(flag)
-            val nMatch = N.matchEntire(flag)
-
-            val layers:Int
-            val appliedFlag:String
-
-            if (directMatch != null) {
-                layers = 1
-                appliedFlag = directMatch.groupValues[1]
-            } else if (allMatch != null) {
-                layers = Int.MAX_VALUE
-                appliedFlag = allMatch.groupValues[1]
-            } else if (nMatch != null) {
-                layers = nMatch.groupValues[1].toInt()
-                if (layers == 0) continue
-                appliedFlag = nMatch.groupValues[2]
-            } else continue
-
+        directory.flags.matchAll(TransitivePattern) { (layers, appliedFlag) ->
             applyFlagToSubdirectories(directory, appliedFlag, layers)
             operated = true
         }
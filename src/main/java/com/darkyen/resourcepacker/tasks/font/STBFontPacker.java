@@ -7,6 +7,7 @@ import com.badlogic.gdx.graphics.g2d.PixmapPacker;
 import com.badlogic.gdx.math.MathUtils;
 import com.badlogic.gdx.math.Rectangle;
 import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.GdxNativesLoader;
 import org.lwjgl.stb.STBTTFontinfo;
 import org.lwjgl.system.MemoryUtil;
 
@@ -42,7 +43,10 @@ public class STBFontPacker {
 		}
 	}
 
-	public static List<File> packFont (File font, String fontName, File outDir, int sizePx, boolean binary) {
+	/** Synchronized, because {@link GlyphData} uses shared buffers. */
+	public static synchronized List<File> packFont (File font, String fontName, File outDir, int sizePx, boolean binary) {
+		// Pixmaps need libGDX natives, which are loaded only when some font is actually packed
+		GdxNativesLoader.load();
 		final STBTTFontinfo fontInfo = STBTTFontinfo.malloc();
 		final ByteBuffer fontByteData = loadFont(font);
 		if (!stbtt_InitFont(fontInfo, fontByteData, stbtt_GetFontOffsetForIndex(fontByteData, 0)))
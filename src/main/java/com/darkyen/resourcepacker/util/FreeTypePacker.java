@@ -52,6 +52,8 @@ public class FreeTypePacker {
      * {@link GdxRuntimeException} if loading did not succeed.
      */
     public FreeTypePacker(FileHandle fontFile) {
+        // Loaded only when some font is actually packed
+        GdxNativesLoader.load();
         this.fontFile = fontFile;
         int fileSize = (int) fontFile.length();
 
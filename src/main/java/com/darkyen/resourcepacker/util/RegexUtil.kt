@@ -4,7 +4,6 @@ package com.darkyen.resourcepacker.util
 
 import com.badlogic.gdx.graphics.Color
 import com.badlogic.gdx.math.MathUtils
-import com.esotericsoftware.minlog.Log
 
 /**
  *
@@ -21,32 +20,6 @@ internal operator inline fun MatchResult.component8(): String = this.groupValues
 internal operator inline fun MatchResult.component9(): String = this.groupValues[9]
 internal operator inline fun MatchResult.component10(): String = this.groupValues[10]
 
-internal inline fun <T> Iterable<String>.matchFirst(r: Regex, warnIfMore:Boolean = true, collector: (MatchResult) -> T): T? {
-    var result:T? = null
-    var hasResult = false
-    for (string in this) {
-        val match = r.matchEntire(string) ?: continue
-        if (hasResult) {
-            Log.warn("matchFirst", "Multiple matches for '${r.pattern}' pattern")
-            continue
-        }
-        result = collector(match)
-        if (warnIfMore) {
-            hasResult = true
-        } else {
-            return result
-        }
-    }
-    return result
-}
-
-internal inline fun Iterable<String>.matchAll(r: Regex, collector: (MatchResult) -> Unit) {
-    for (string in this) {
-        val match = r.matchEntire(string) ?: continue
-        collector(match)
-    }
-}
-
 /**
  * Regex group used for matching colors in hex.
  * Matches 1 to 8 hex numbers, intuitively mapping them to these interpretations:
@@ -0,0 +1,192 @@
+package com.darkyen.resourcepacker.util.texturepacker;
+
+import com.badlogic.gdx.math.MathUtils;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.Sort;
+
+import java.util.Comparator;
+
+/**
+ * Base of packers which place each rect only once, instead of searching through page sizes and heuristics like {@link MaxRectsPacker}.
+ * Pages are a bit emptier, but packing is many times faster, which is good enough for development builds.
+ * <p>
+ * Rects are placed from the biggest one. Only page widths which are powers of two and the max width are tried,
+ * the height of the page is then given by the placed rects.
+ */
+public abstract class FastPacker implements MultiScaleTexturePacker.Packer {
+    final MultiScaleTexturePacker.Settings settings;
+    private final Sort sort = new Sort();
+
+    protected FastPacker(MultiScaleTexturePacker.Settings settings) {
+        this.settings = settings;
+        if (settings.minWidth > settings.maxWidth)
+            throw new RuntimeException("Page min width cannot be higher than max width.");
+        if (settings.minHeight > settings.maxHeight)
+            throw new RuntimeException("Page min height cannot be higher than max height.");
+    }
+
+    public Array<MultiScaleTexturePacker.Page> pack(Array<MultiScaleTexturePacker.Rect> inputRects) {
+        for (int i = 0, nn = inputRects.size; i < nn; i++) {
+            MultiScaleTexturePacker.Rect rect = inputRects.get(i);
+            rect.pageWidth += settings.paddingX;
+            rect.pageHeight += settings.paddingY;
+        }
+
+        // Biggest rects are the hardest to place, so they go first. Sort is stable, so equal rects stay in the order of sources.
+        sort.sort(inputRects, new Comparator<MultiScaleTexturePacker.Rect>() {
+            public int compare(MultiScaleTexturePacker.Rect o1, MultiScaleTexturePacker.Rect o2) {
+                int long1 = Math.max(o1.pageWidth, o1.pageHeight), long2 = Math.max(o2.pageWidth, o2.pageHeight);
+                if (long1 != long2) return long2 - long1;
+                return Math.min(o2.pageWidth, o2.pageHeight) - Math.min(o1.pageWidth, o1.pageHeight);
+            }
+        });
+
+        Array<MultiScaleTexturePacker.Page> pages = new Array<>();
+        while (inputRects.size > 0) {
+            MultiScaleTexturePacker.Page result = packPage(inputRects);
+            pages.add(result);
+            inputRects = result.remainingRects;
+        }
+        return pages;
+    }
+
+    private MultiScaleTexturePacker.Page packPage(Array<MultiScaleTexturePacker.Rect> inputRects) {
+        int paddingX = settings.paddingX, paddingY = settings.paddingY;
+        int maxWidth = settings.maxWidth, maxHeight = settings.maxHeight;
+        int edgePaddingX = 0, edgePaddingY = 0;
+        if (settings.edgePadding) {
+            if (settings.duplicatePadding) { // If duplicatePadding, edges get only half padding.
+                maxWidth -= paddingX;
+                maxHeight -= paddingY;
+            } else {
+                maxWidth -= paddingX * 2;
+                maxHeight -= paddingY * 2;
+                edgePaddingX = paddingX;
+                edgePaddingY = paddingY;
+            }
+        }
+
+        for (int i = 0, nn = inputRects.size; i < nn; i++) {
+            MultiScaleTexturePacker.Rect rect = inputRects.get(i);
+            int width = rect.pageWidth - paddingX, height = rect.pageHeight - paddingY;
+            boolean fits = width <= maxWidth && height <= maxHeight;
+            if (!fits && canRotate(rect)) fits = width <= maxHeight && height <= maxWidth;
+            if (!fits) {
+                String paddingMessage = (edgePaddingX > 0 || edgePaddingY > 0) ? (" and edge padding " + paddingX + "," + paddingY) : "";
+                throw new RuntimeException("Image does not fit with max page size " + settings.maxWidth + "x" + settings.maxHeight
+                        + paddingMessage + ": " + rect.source.name + "[" + width + "," + height + "]");
+            }
+        }
+
+        MultiScaleTexturePacker.Page bestResult = null;
+        long bestArea = Long.MAX_VALUE;
+        for (int width = MathUtils.nextPowerOfTwo(settings.minWidth); ; width *= 2) {
+            final int pageWidth = Math.min(width, settings.maxWidth);
+            final int pageHeight = settings.square ? Math.min(pageWidth, settings.maxHeight) : settings.maxHeight;
+            final MultiScaleTexturePacker.Page result = packAtSize(pageWidth - edgePaddingX, pageHeight - edgePaddingY, inputRects);
+
+            if (result.remainingRects.size == 0) {
+                final long area = imageArea(result);
+                if (area < bestArea) {
+                    bestResult = result;
+                    bestArea = area;
+                }
+                // Wider pages would only be flatter
+                if (result.height <= pageWidth) break;
+            }
+
+            if (pageWidth == settings.maxWidth) {
+                // Rects don't fit on one page, fill a whole page
+                if (bestResult == null) bestResult = result;
+                break;
+            }
+        }
+
+        if (bestResult.outputRects.size == 0) {
+            throw new RuntimeException("No image could be placed on a page");
+        }
+        bestResult.outputRects.sort();
+        if (settings.square) {
+            bestResult.width = Math.max(bestResult.width, bestResult.height);
+            bestResult.height = Math.max(bestResult.width, bestResult.height);
+        }
+        return bestResult;
+    }
+
+    /**
+     * Places as many rects as possible on a page of given size.
+     *
+     * @param inputRects to place, must not be changed, placed rects are copies
+     * @return page with placed rects and with those which didn't fit in {@link MultiScaleTexturePacker.Page#remainingRects}, see {@link #page}
+     */
+    protected abstract MultiScaleTexturePacker.Page packAtSize(int width, int height, Array<MultiScaleTexturePacker.Rect> inputRects);
+
+    /** @return whether the rect may be placed rotated */
+    protected final boolean canRotate(MultiScaleTexturePacker.Rect rect) {
+        return settings.rotation && rect.canRotate();
+    }
+
+    /** @return width of the rect when it is rotated, padding stays the same */
+    protected final int rotatedWidth(MultiScaleTexturePacker.Rect rect) {
+        return rect.pageHeight - settings.paddingY + settings.paddingX;
+    }
+
+    /** @return height of the rect when it is rotated, padding stays the same */
+    protected final int rotatedHeight(MultiScaleTexturePacker.Rect rect) {
+        return rect.pageWidth - settings.paddingX + settings.paddingY;
+    }
+
+    /** @return copy of the rect, placed at given position */
+    protected final MultiScaleTexturePacker.Rect place(MultiScaleTexturePacker.Rect rect, int x, int y, boolean rotated) {
+        final MultiScaleTexturePacker.Rect placed = new MultiScaleTexturePacker.Rect();
+        placed.set(rect);
+        placed.pageX = x;
+        placed.pageY = y;
+        if (rotated) {
+            placed.pageWidth = rotatedWidth(rect);
+            placed.pageHeight = rotatedHeight(rect);
+        }
+        placed.rotated = rotated;
+        return placed;
+    }
+
+    /** @return page with the placed rects, whose size is their extent */
+    protected static MultiScaleTexturePacker.Page page(Array<MultiScaleTexturePacker.Rect> placedRects, Array<MultiScaleTexturePacker.Rect> remainingRects) {
+        int w = 0, h = 0;
+        long usedArea = 0;
+        for (int i = 0; i < placedRects.size; i++) {
+            MultiScaleTexturePacker.Rect rect = placedRects.get(i);
+            w = Math.max(w, rect.pageX + rect.pageWidth);
+            h = Math.max(h, rect.pageY + rect.pageHeight);
+            usedArea += (long) rect.pageWidth * rect.pageHeight;
+        }
+        MultiScaleTexturePacker.Page result = new MultiScaleTexturePacker.Page();
+        result.outputRects = placedRects;
+        result.remainingRects = remainingRects;
+        result.occupancy = w == 0 || h == 0 ? 0f : (float) usedArea / ((long) w * h);
+        result.width = w;
+        result.height = h;
+        return result;
+    }
+
+    /** @return the page which has less remaining rects, or better occupancy, or the first one */
+    protected static MultiScaleTexturePacker.Page better(MultiScaleTexturePacker.Page result1, MultiScaleTexturePacker.Page result2) {
+        if (result1.remainingRects.size != result2.remainingRects.size) {
+            return result1.remainingRects.size < result2.remainingRects.size ? result1 : result2;
+        }
+        return result2.occupancy > result1.occupancy ? result2 : result1;
+    }
+
+    /** @return area of the image of the page, as it will be written */
+    private long imageArea(MultiScaleTexturePacker.Page page) {
+        int width = page.width, height = page.height;
+        if (settings.square) {
+            width = height = Math.max(width, height);
+        }
+        if (settings.pot) {
+            width = MathUtils.nextPowerOfTwo(width);
+            height = MathUtils.nextPowerOfTwo(height);
+        }
+        return (long) width * height;
+    }
+}
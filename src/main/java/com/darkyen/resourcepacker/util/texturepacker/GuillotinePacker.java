@@ -0,0 +1,115 @@
+package com.darkyen.resourcepacker.util.texturepacker;
+
+import com.badlogic.gdx.utils.Array;
+
+import java.util.Arrays;
+
+/**
+ * Packs pages of images by placing each rect into the free rectangle which it fits best (best area fit)
+ * and cutting the rest of that free rectangle into two, along its shorter leftover side.
+ * <p>
+ * Free rectangles never overlap, so there are less of them than with {@link MaxRectsPacker} and they are not pruned,
+ * but cuts can't be undone, so pages are a bit emptier.
+ *
+ * @see FastPacker
+ */
+public class GuillotinePacker extends FastPacker {
+    /* Free rectangles, they never overlap */
+    private int[] freeX = new int[16], freeY = new int[16], freeWidth = new int[16], freeHeight = new int[16];
+    private int freeCount;
+
+    /* Best position found for the current rect */
+    private int bestIndex, bestWidth, bestHeight;
+    private boolean bestRotated;
+    private long bestScore1, bestScore2;
+
+    public GuillotinePacker(MultiScaleTexturePacker.Settings settings) {
+        super(settings);
+    }
+
+    @Override
+    protected MultiScaleTexturePacker.Page packAtSize(int width, int height, Array<MultiScaleTexturePacker.Rect> inputRects) {
+        freeCount = 0;
+        addFree(0, 0, width, height);
+
+        final Array<MultiScaleTexturePacker.Rect> placed = new Array<>(inputRects.size);
+        final Array<MultiScaleTexturePacker.Rect> remaining = new Array<>();
+        for (int i = 0; i < inputRects.size; i++) {
+            final MultiScaleTexturePacker.Rect rect = inputRects.get(i);
+            bestIndex = -1;
+            bestScore1 = Long.MAX_VALUE;
+            bestScore2 = Long.MAX_VALUE;
+            findPosition(rect.pageWidth, rect.pageHeight, false);
+            if (canRotate(rect)) {
+                findPosition(rotatedWidth(rect), rotatedHeight(rect), true);
+            }
+
+            if (bestIndex == -1) {
+                remaining.add(rect);
+                continue;
+            }
+            placed.add(place(rect, freeX[bestIndex], freeY[bestIndex], bestRotated));
+            split(bestIndex, bestWidth, bestHeight);
+        }
+        return page(placed, remaining);
+    }
+
+    private void findPosition(int width, int height, boolean rotated) {
+        for (int i = 0; i < freeCount; i++) {
+            final int fw = freeWidth[i], fh = freeHeight[i];
+            if (fw < width || fh < height) continue;
+
+            final long areaFit = (long) fw * fh - (long) width * height;
+            final long shortSideFit = Math.min(fw - width, fh - height);
+            if (areaFit < bestScore1 || (areaFit == bestScore1 && shortSideFit < bestScore2)) {
+                bestScore1 = areaFit;
+                bestScore2 = shortSideFit;
+                bestIndex = i;
+                bestWidth = width;
+                bestHeight = height;
+                bestRotated = rotated;
+            }
+        }
+    }
+
+    /** Replaces the free rectangle, whose top left corner is taken by a rect of given size, with what is left of it. */
+    private void split(int index, int width, int height) {
+        final int x = freeX[index], y = freeY[index], fw = freeWidth[index], fh = freeHeight[index];
+        removeFree(index);
+
+        final int leftoverWidth = fw - width, leftoverHeight = fh - height;
+        if (leftoverWidth < leftoverHeight) {
+            // Cut horizontally, the bigger part below the rect spans the whole width
+            addFree(x + width, y, leftoverWidth, height);
+            addFree(x, y + height, fw, leftoverHeight);
+        } else {
+            // Cut vertically, the bigger part right of the rect spans the whole height
+            addFree(x + width, y, leftoverWidth, fh);
+            addFree(x, y + height, width, leftoverHeight);
+        }
+    }
+
+    private void addFree(int x, int y, int width, int height) {
+        if (width <= 0 || height <= 0) return;
+        if (freeCount == freeX.length) {
+            freeX = Arrays.copyOf(freeX, freeCount * 2);
+            freeY = Arrays.copyOf(freeY, freeCount * 2);
+            freeWidth = Arrays.copyOf(freeWidth, freeCount * 2);
+            freeHeight = Arrays.copyOf(freeHeight, freeCount * 2);
+        }
+        freeX[freeCount] = x;
+        freeY[freeCount] = y;
+        freeWidth[freeCount] = width;
+        freeHeight[freeCount] = height;
+        freeCount++;
+    }
+
+    private void removeFree(int index) {
+        // Moves only the last one, the order stays deterministic
+        final int last = --freeCount;
+        freeX[index] = freeX[last];
+        freeY[index] = freeY[last];
+        freeWidth[index] = freeWidth[last];
+        freeHeight[index] = freeHeight[last];
+    }
+}
@@ -3,6 +3,8 @@ package com.darkyen.resourcepacker.util.texturepacker;
 import com.badlogic.gdx.math.MathUtils;
 import com.badlogic.gdx.math.Rectangle;
 import com.darkyen.resourcepacker.image.Image;
+import com.darkyen.resourcepacker.image.ImageMemory;
+import com.darkyen.resourcepacker.image.SpillableImage;
 import com.esotericsoftware.minlog.Log;
 
 import java.awt.image.BufferedImage;
@@ -35,7 +37,10 @@ public final class ImageSource implements Comparable<ImageSource> {
     private final Image.BitmapImage[] bitmapOverrideImagesByFactor = new Image.BitmapImage[MAX_SCALE_FACTOR];
     /** Images assigned from bitmap and vector images. If the {@link #bitmapOverrideImagesByFactor} is filled, then this will hold the vector version. */
     private final Image[] imagesByFactor = new Image[MAX_SCALE_FACTOR];
-    private final BufferedImage[] bitmapsByFactor = new BufferedImage[MAX_SCALE_FACTOR];
+    /** Rasterized images, may be spilled to disk when {@link MultiScaleTexturePacker.Settings#limitMemory} is set. */
+    private final SpillableImage[] bitmapsByFactor = new SpillableImage[MAX_SCALE_FACTOR];
+    /** Memory of the operation, in which {@link #bitmapsByFactor} are accounted, or null if not limited */
+    private ImageMemory memory;
     private byte[] imageSourceHash = null;
 
     ImageSource(String name, int index) {
@@ -68,6 +73,7 @@ public final class ImageSource implements Comparable<ImageSource> {
     public final MultiScaleTexturePacker.Rect validate(MultiScaleTexturePacker.Settings settings, int[] scales) {
         assert !validated;
         validated = true;
+        memory = settings.limitMemory ? ImageMemory.current() : null;
 
         final int baseWidth, baseHeight;
         final boolean ninepatch;
@@ -123,7 +129,7 @@ public final class ImageSource implements Comparable<ImageSource> {
                 final Image overrideImage = bitmapOverrideImagesByFactor[scale - 1];
                 final Image rasterizationImage = overrideImage == null ? image : overrideImage;
 
-                bitmapsByFactor[scale - 1] = ensureCorrectFormat(rasterizationImage.image(expectedW, expectedH, rasterizationImage.getBackgroundColor()));
+                bitmapsByFactor[scale - 1] = rasterize(rasterizationImage, expectedW, expectedH);
             }
 
             // Derive missing bitmaps
@@ -137,7 +143,7 @@ public final class ImageSource implements Comparable<ImageSource> {
                 for (int i = scale + 1; i <= MAX_SCALE_FACTOR; i++) {
                     final Image image = imagesByFactor[i - 1];
                     if (image != null) {
-                        bitmapsByFactor[scale - 1] = ensureCorrectFormat(image.image(baseWidth*scale, baseHeight*scale, image.getBackgroundColor()));
+                        bitmapsByFactor[scale - 1] = rasterize(image, baseWidth*scale, baseHeight*scale);
                         continue deriveMissingBitmaps;
                     }
                 }
@@ -145,7 +151,7 @@ public final class ImageSource implements Comparable<ImageSource> {
                 for (int i = scale - 1; i >= 1; i--) {
                     final Image image = imagesByFactor[i - 1];
                     if (image != null) {
-                        bitmapsByFactor[scale - 1] = ensureCorrectFormat(image.image(baseWidth*scale, baseHeight*scale, image.getBackgroundColor()));
+                        bitmapsByFactor[scale - 1] = rasterize(image, baseWidth*scale, baseHeight*scale);
                         continue deriveMissingBitmaps;
                     }
                 }
@@ -163,7 +169,7 @@ public final class ImageSource implements Comparable<ImageSource> {
                 // Do not consider derived images, they are covered by their parents
                 if (imagesByFactor[scaleFactor-1] == null) continue;
 
-                final BufferedImage image = bitmapsByFactor[scaleFactor - 1];
+                final BufferedImage image = bitmapsByFactor[scaleFactor - 1].get();
                 stripWhitespace(settings, image, scaleEssentialBounds);
                 scaleEssentialBounds.x = scaleEssentialBounds.x / scaleFactor;
                 scaleEssentialBounds.y = scaleEssentialBounds.y / scaleFactor;
@@ -190,8 +196,8 @@ public final class ImageSource implements Comparable<ImageSource> {
     public final BufferedImage createTrimmedImage(int scaleFactor) {
         assert validated : "Not validated yet";
 
-        final BufferedImage image = bitmapsByFactor[scaleFactor - 1];
-        assert image != null;
+        assert bitmapsByFactor[scaleFactor - 1] != null;
+        final BufferedImage image = bitmapsByFactor[scaleFactor - 1].get();
         if (stripOffX == 0 && stripOffY == 0 && stripWidth == baseWidth && stripHeight == baseHeight) {
             return image;
         }
@@ -287,11 +293,12 @@ public final class ImageSource implements Comparable<ImageSource> {
             return null;
         }
 
-        for (BufferedImage image : bitmapsByFactor) {
-            if (image == null) {
+        for (SpillableImage bitmap : bitmapsByFactor) {
+            if (bitmap == null) {
                 digest.update((byte)0);
                 continue;
             }
+            final BufferedImage image = bitmap.get();
 
             // Ensure image is the correct format.
             int width = image.getWidth();
@@ -315,6 +322,28 @@ public final class ImageSource implements Comparable<ImageSource> {
         return imageSourceHash = digest.digest();
     }
 
+    /** Frees rasterized images, after they are no longer needed. */
+    public void dispose() {
+        for (int i = 0; i < bitmapsByFactor.length; i++) {
+            final SpillableImage bitmap = bitmapsByFactor[i];
+            if (bitmap != null) {
+                bitmap.dispose();
+                bitmapsByFactor[i] = null;
+            }
+        }
+    }
+
+    /** Rasterizes the image in given size, waiting for {@link #memory} if there is not enough of it. */
+    private SpillableImage rasterize(Image image, int width, int height) {
+        final long bytes = ImageMemory.sizeOf(width, height);
+        if (memory != null) memory.reserve(bytes);
+        try {
+            return new SpillableImage(memory, ensureCorrectFormat(image.image(width, height, image.getBackgroundColor())));
+        } finally {
+            if (memory != null) memory.release(bytes);
+        }
+    }
+
     private BufferedImage ensureCorrectFormat(BufferedImage image) {
         if (image.getType() != BufferedImage.TYPE_4BYTE_ABGR) {
             BufferedImage newImage = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_4BYTE_ABGR);
@@ -0,0 +1,575 @@
+package com.darkyen.resourcepacker.util.texturepacker;
+
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.IntArray;
+import com.badlogic.gdx.utils.IntMap;
+
+import java.util.Arrays;
+
+/**
+ * The same maximal rectangles algorithm as {@link MaxRectsPacker.MaxRects}, which places rects at the same positions,
+ * but does not slow down quadratically with the number of rects on a page.
+ * <p>
+ * Free rectangles are kept in primitive arrays, in the order in which they were created, because the heuristics resolve ties by it.
+ * Removed ones are only marked and the arrays are compacted when there are too many of them.
+ * A grid of buckets finds free rectangles which intersect a placed rect, or which may contain a new free rectangle.
+ * Used rectangles are indexed by their edges, for {@link MaxRectsPacker.FreeRectChoiceHeuristic#ContactPointRule}.
+ */
+final class IndexedMaxRects implements MaxRectsPacker.Core {
+    /** Maximum number of grid cells in each direction */
+    private static final int GRID_SIZE = 32;
+
+    private final MultiScaleTexturePacker.Settings settings;
+    private int binWidth;
+    private int binHeight;
+
+    /* Free rectangles in the order of creation, removed ones have negative width */
+    private int[] freeX = new int[64], freeY = new int[64], freeWidth = new int[64], freeHeight = new int[64];
+    private int freeCount, freeRemoved;
+
+    /* Grid of free rectangles, each cell has indices of all free rectangles which overlap it, including removed ones */
+    private int cellShiftX, cellShiftY, columns, rows;
+    private IntArray[] cells = new IntArray[0];
+    /* Marks of free rectangles already found by the current query */
+    private int[] seen = new int[64];
+    private int seenStamp;
+    private final IntArray candidates = new IntArray();
+    private final IntArray contained = new IntArray();
+
+    private final Array<MultiScaleTexturePacker.Rect> usedRectangles = new Array<>();
+    /* Indices of used rectangles by coordinates of their edges */
+    private final IntMap<IntArray> usedByLeft = new IntMap<>(), usedByRight = new IntMap<>(), usedByBottom = new IntMap<>(), usedByTop = new IntMap<>();
+
+    IndexedMaxRects(MultiScaleTexturePacker.Settings settings) {
+        this.settings = settings;
+    }
+
+    public void init(int width, int height) {
+        binWidth = width;
+        binHeight = height;
+
+        freeCount = 0;
+        freeRemoved = 0;
+        cellShiftX = cellShift(width);
+        cellShiftY = cellShift(height);
+        columns = (Math.max(width, 1) - 1 >> cellShiftX) + 1;
+        rows = (Math.max(height, 1) - 1 >> cellShiftY) + 1;
+        if (cells.length < columns * rows) {
+            cells = new IntArray[columns * rows];
+        }
+        for (IntArray cell : cells) {
+            if (cell != null) cell.clear();
+        }
+
+        usedRectangles.clear();
+        usedByLeft.clear();
+        usedByRight.clear();
+        usedByBottom.clear();
+        usedByTop.clear();
+
+        addFree(0, 0, width, height);
+    }
+
+    public MultiScaleTexturePacker.Rect insert(MultiScaleTexturePacker.Rect rect, MaxRectsPacker.FreeRectChoiceHeuristic method) {
+        MultiScaleTexturePacker.Rect newNode = scoreRect(rect, method);
+        if (newNode.pageHeight == 0) return null;
+
+        MultiScaleTexturePacker.Rect bestNode = new MultiScaleTexturePacker.Rect();
+        bestNode.set(rect);
+        bestNode.score1 = newNode.score1;
+        bestNode.score2 = newNode.score2;
+        bestNode.pageX = newNode.pageX;
+        bestNode.pageY = newNode.pageY;
+        bestNode.pageWidth = newNode.pageWidth;
+        bestNode.pageHeight = newNode.pageHeight;
+        bestNode.rotated = newNode.rotated;
+
+        placeRect(bestNode);
+        return bestNode;
+    }
+
+    public MultiScaleTexturePacker.Page pack(Array<MultiScaleTexturePacker.Rect> rects, MaxRectsPacker.FreeRectChoiceHeuristic method) {
+        rects = new Array<>(rects);
+        while (rects.size > 0) {
+            int bestRectIndex = -1;
+            MultiScaleTexturePacker.Rect bestNode = new MultiScaleTexturePacker.Rect();
+            bestNode.score1 = Integer.MAX_VALUE;
+            bestNode.score2 = Integer.MAX_VALUE;
+
+            // Find the next rectangle that packs best.
+            for (int i = 0; i < rects.size; i++) {
+                MultiScaleTexturePacker.Rect newNode = scoreRect(rects.get(i), method);
+                if (newNode.score1 < bestNode.score1 || (newNode.score1 == bestNode.score1 && newNode.score2 < bestNode.score2)) {
+                    bestNode.set(rects.get(i));
+                    bestNode.score1 = newNode.score1;
+                    bestNode.score2 = newNode.score2;
+                    bestNode.pageX = newNode.pageX;
+                    bestNode.pageY = newNode.pageY;
+                    bestNode.pageWidth = newNode.pageWidth;
+                    bestNode.pageHeight = newNode.pageHeight;
+                    bestNode.rotated = newNode.rotated;
+                    bestRectIndex = i;
+                }
+            }
+
+            if (bestRectIndex == -1) break;
+
+            placeRect(bestNode);
+            rects.removeIndex(bestRectIndex);
+        }
+
+        MultiScaleTexturePacker.Page result = getResult();
+        result.remainingRects = rects;
+        return result;
+    }
+
+    public MultiScaleTexturePacker.Page getResult() {
+        int w = 0, h = 0;
+        for (int i = 0; i < usedRectangles.size; i++) {
+            MultiScaleTexturePacker.Rect rect = usedRectangles.get(i);
+            w = Math.max(w, rect.pageX + rect.pageWidth);
+            h = Math.max(h, rect.pageY + rect.pageHeight);
+        }
+        MultiScaleTexturePacker.Page result = new MultiScaleTexturePacker.Page();
+        result.outputRects = new Array<>(usedRectangles);
+        result.occupancy = getOccupancy();
+        result.width = w;
+        result.height = h;
+        return result;
+    }
+
+    public void occupy(MultiScaleTexturePacker.Rect placed) {
+        placeRect(placed);
+    }
+
+    private void placeRect(MultiScaleTexturePacker.Rect node) {
+        // In the order of creation, so that new free rectangles are created in the same order as by MaxRects
+        candidates.clear();
+        findOverlapping(node.pageX, node.pageY, Math.max(node.pageWidth, 1), Math.max(node.pageHeight, 1), candidates);
+        final int firstNew = freeCount;
+        for (int c = 0; c < candidates.size; c++) {
+            final int i = candidates.get(c);
+            if (splitFreeNode(i, node)) {
+                removeFree(i);
+            }
+        }
+
+        pruneFreeList(firstNew);
+
+        usedRectangles.add(node);
+        final int used = usedRectangles.size - 1;
+        addUsed(usedByLeft, node.pageX, used);
+        addUsed(usedByRight, node.pageX + node.pageWidth, used);
+        addUsed(usedByBottom, node.pageY, used);
+        addUsed(usedByTop, node.pageY + node.pageHeight, used);
+
+        if (freeRemoved > 64 && freeRemoved > freeCount / 2) {
+            compact();
+        }
+    }
+
+    private MultiScaleTexturePacker.Rect scoreRect(MultiScaleTexturePacker.Rect rect, MaxRectsPacker.FreeRectChoiceHeuristic method) {
+        int width = rect.pageWidth;
+        int height = rect.pageHeight;
+        int rotatedWidth = height - settings.paddingY + settings.paddingX;
+        int rotatedHeight = width - settings.paddingX + settings.paddingY;
+        boolean rotate = rect.canRotate() && settings.rotation;
+
+        MultiScaleTexturePacker.Rect newNode = null;
+        switch (method) {
+            case BestShortSideFit:
+                newNode = findPositionForNewNodeBestShortSideFit(width, height, rotatedWidth, rotatedHeight, rotate);
+                break;
+            case BottomLeftRule:
+                newNode = findPositionForNewNodeBottomLeft(width, height, rotatedWidth, rotatedHeight, rotate);
+                break;
+            case ContactPointRule:
+                newNode = findPositionForNewNodeContactPoint(width, height, rotatedWidth, rotatedHeight, rotate);
+                newNode.score1 = -newNode.score1; // Reverse since we are minimizing, but for contact point score bigger is better.
+                break;
+            case BestLongSideFit:
+                newNode = findPositionForNewNodeBestLongSideFit(width, height, rotatedWidth, rotatedHeight, rotate);
+                break;
+            case BestAreaFit:
+                newNode = findPositionForNewNodeBestAreaFit(width, height, rotatedWidth, rotatedHeight, rotate);
+                break;
+        }
+
+        // Cannot fit the current rectangle.
+        if (newNode.pageHeight == 0) {
+            newNode.score1 = Integer.MAX_VALUE;
+            newNode.score2 = Integer.MAX_VALUE;
+        }
+
+        return newNode;
+    }
+
+    private float getOccupancy() {
+        int usedSurfaceArea = 0;
+        for (int i = 0; i < usedRectangles.size; i++)
+            usedSurfaceArea += usedRectangles.get(i).pageWidth * usedRectangles.get(i).pageHeight;
+        return (float) usedSurfaceArea / (binWidth * binHeight);
+    }
+
+    private static void place(MultiScaleTexturePacker.Rect node, int x, int y, int width, int height, int score1, int score2, boolean rotated) {
+        node.pageX = x;
+        node.pageY = y;
+        node.pageWidth = width;
+        node.pageHeight = height;
+        node.score1 = score1;
+        node.score2 = score2;
+        node.rotated = rotated;
+    }
+
+    private MultiScaleTexturePacker.Rect findPositionForNewNodeBottomLeft(int width, int height, int rotatedWidth, int rotatedHeight, boolean rotate) {
+        MultiScaleTexturePacker.Rect bestNode = new MultiScaleTexturePacker.Rect();
+        bestNode.score1 = Integer.MAX_VALUE; // best y, score2 is best x
+
+        for (int i = 0; i < freeCount; i++) {
+            final int fw = freeWidth[i];
+            if (fw < 0) continue;
+            final int fx = freeX[i], fy = freeY[i], fh = freeHeight[i];
+            if (fw >= width && fh >= height) {
+                int topSideY = fy + height;
+                if (topSideY < bestNode.score1 || (topSideY == bestNode.score1 && fx < bestNode.score2)) {
+                    place(bestNode, fx, fy, width, height, topSideY, fx, false);
+                }
+            }
+            if (rotate && fw >= rotatedWidth && fh >= rotatedHeight) {
+                int topSideY = fy + rotatedHeight;
+                if (topSideY < bestNode.score1 || (topSideY == bestNode.score1 && fx < bestNode.score2)) {
+                    place(bestNode, fx, fy, rotatedWidth, rotatedHeight, topSideY, fx, true);
+                }
+            }
+        }
+        return bestNode;
+    }
+
+    private MultiScaleTexturePacker.Rect findPositionForNewNodeBestShortSideFit(int width, int height, int rotatedWidth, int rotatedHeight,
+                                                                                boolean rotate) {
+        MultiScaleTexturePacker.Rect bestNode = new MultiScaleTexturePacker.Rect();
+        bestNode.score1 = Integer.MAX_VALUE;
+
+        for (int i = 0; i < freeCount; i++) {
+            final int fw = freeWidth[i];
+            if (fw < 0) continue;
+            final int fx = freeX[i], fy = freeY[i], fh = freeHeight[i];
+            if (fw >= width && fh >= height) {
+                int leftoverHoriz = Math.abs(fw - width);
+                int leftoverVert = Math.abs(fh - height);
+                int shortSideFit = Math.min(leftoverHoriz, leftoverVert);
+                int longSideFit = Math.max(leftoverHoriz, leftoverVert);
+                if (shortSideFit < bestNode.score1 || (shortSideFit == bestNode.score1 && longSideFit < bestNode.score2)) {
+                    place(bestNode, fx, fy, width, height, shortSideFit, longSideFit, false);
+                }
+            }
+            if (rotate && fw >= rotatedWidth && fh >= rotatedHeight) {
+                int leftoverHoriz = Math.abs(fw - rotatedWidth);
+                int leftoverVert = Math.abs(fh - rotatedHeight);
+                int shortSideFit = Math.min(leftoverHoriz, leftoverVert);
+                int longSideFit = Math.max(leftoverHoriz, leftoverVert);
+                if (shortSideFit < bestNode.score1 || (shortSideFit == bestNode.score1 && longSideFit < bestNode.score2)) {
+                    place(bestNode, fx, fy, rotatedWidth, rotatedHeight, shortSideFit, longSideFit, true);
+                }
+            }
+        }
+        return bestNode;
+    }
+
+    private MultiScaleTexturePacker.Rect findPositionForNewNodeBestLongSideFit(int width, int height, int rotatedWidth, int rotatedHeight,
+                                                                               boolean rotate) {
+        MultiScaleTexturePacker.Rect bestNode = new MultiScaleTexturePacker.Rect();
+        bestNode.score2 = Integer.MAX_VALUE;
+
+        for (int i = 0; i < freeCount; i++) {
+            final int fw = freeWidth[i];
+            if (fw < 0) continue;
+            final int fx = freeX[i], fy = freeY[i], fh = freeHeight[i];
+            if (fw >= width && fh >= height) {
+                int leftoverHoriz = Math.abs(fw - width);
+                int leftoverVert = Math.abs(fh - height);
+                int shortSideFit = Math.min(leftoverHoriz, leftoverVert);
+                int longSideFit = Math.max(leftoverHoriz, leftoverVert);
+                if (longSideFit < bestNode.score2 || (longSideFit == bestNode.score2 && shortSideFit < bestNode.score1)) {
+                    place(bestNode, fx, fy, width, height, shortSideFit, longSideFit, false);
+                }
+            }
+            if (rotate && fw >= rotatedWidth && fh >= rotatedHeight) {
+                int leftoverHoriz = Math.abs(fw - rotatedWidth);
+                int leftoverVert = Math.abs(fh - rotatedHeight);
+                int shortSideFit = Math.min(leftoverHoriz, leftoverVert);
+                int longSideFit = Math.max(leftoverHoriz, leftoverVert);
+                if (longSideFit < bestNode.score2 || (longSideFit == bestNode.score2 && shortSideFit < bestNode.score1)) {
+                    place(bestNode, fx, fy, rotatedWidth, rotatedHeight, shortSideFit, longSideFit, true);
+                }
+            }
+        }
+        return bestNode;
+    }
+
+    private MultiScaleTexturePacker.Rect findPositionForNewNodeBestAreaFit(int width, int height, int rotatedWidth, int rotatedHeight,
+                                                                           boolean rotate) {
+        MultiScaleTexturePacker.Rect bestNode = new MultiScaleTexturePacker.Rect();
+        bestNode.score1 = Integer.MAX_VALUE; // best area fit, score2 is best short side fit
+
+        for (int i = 0; i < freeCount; i++) {
+            final int fw = freeWidth[i];
+            if (fw < 0) continue;
+            final int fx = freeX[i], fy = freeY[i], fh = freeHeight[i];
+            int areaFit = fw * fh - width * height;
+            if (fw >= width && fh >= height) {
+                int shortSideFit = Math.min(Math.abs(fw - width), Math.abs(fh - height));
+                if (areaFit < bestNode.score1 || (areaFit == bestNode.score1 && shortSideFit < bestNode.score2)) {
+                    place(bestNode, fx, fy, width, height, areaFit, shortSideFit, false);
+                }
+            }
+            if (rotate && fw >= rotatedWidth && fh >= rotatedHeight) {
+                int shortSideFit = Math.min(Math.abs(fw - rotatedWidth), Math.abs(fh - rotatedHeight));
+                if (areaFit < bestNode.score1 || (areaFit == bestNode.score1 && shortSideFit < bestNode.score2)) {
+                    place(bestNode, fx, fy, rotatedWidth, rotatedHeight, areaFit, shortSideFit, true);
+                }
+            }
+        }
+        return bestNode;
+    }
+
+    private MultiScaleTexturePacker.Rect findPositionForNewNodeContactPoint(int width, int height, int rotatedWidth, int rotatedHeight,
+                                                                            boolean rotate) {
+        MultiScaleTexturePacker.Rect bestNode = new MultiScaleTexturePacker.Rect();
+        bestNode.score1 = -1; // best contact score
+
+        for (int i = 0; i < freeCount; i++) {
+            final int fw = freeWidth[i];
+            if (fw < 0) continue;
+            final int fx = freeX[i], fy = freeY[i], fh = freeHeight[i];
+            if (fw >= width && fh >= height) {
+                int score = contactPointScoreNode(fx, fy, width, height);
+                if (score > bestNode.score1) {
+                    place(bestNode, fx, fy, width, height, score, bestNode.score2, false);
+                }
+            }
+            if (rotate && fw >= rotatedWidth && fh >= rotatedHeight) {
+                int score = contactPointScoreNode(fx, fy, rotatedWidth, rotatedHeight);
+                if (score > bestNode.score1) {
+                    place(bestNode, fx, fy, rotatedWidth, rotatedHeight, score, bestNode.score2, true);
+                }
+            }
+        }
+        return bestNode;
+    }
+
+    // / Returns 0 if the two intervals i1 and i2 are disjoint, or the length of their overlap otherwise.
+    private static int commonIntervalLength(int i1start, int i1end, int i2start, int i2end) {
+        if (i1end < i2start || i2end < i1start) return 0;
+        return Math.min(i1end, i2end) - Math.max(i1start, i2start);
+    }
+
+    private int contactPointScoreNode(int x, int y, int width, int height) {
+        int score = 0;
+
+        if (x == 0 || x + width == binWidth) score += height;
+        if (y == 0 || y + height == binHeight) score += width;
+
+        // Only used rectangles with an edge on an edge of the node can touch it
+        final IntArray left = usedByLeft.get(x + width);
+        if (left != null) {
+            for (int i = 0; i < left.size; i++) {
+                final MultiScaleTexturePacker.Rect used = usedRectangles.get(left.get(i));
+                score += commonIntervalLength(used.pageY, used.pageY + used.pageHeight, y, y + height);
+            }
+        }
+        final IntArray right = usedByRight.get(x);
+        if (right != null) {
+            for (int i = 0; i < right.size; i++) {
+                final MultiScaleTexturePacker.Rect used = usedRectangles.get(right.get(i));
+                // Counted already
+                if (used.pageX == x + width) continue;
+                score += commonIntervalLength(used.pageY, used.pageY + used.pageHeight, y, y + height);
+            }
+        }
+        final IntArray bottom = usedByBottom.get(y + height);
+        if (bottom != null) {
+            for (int i = 0; i < bottom.size; i++) {
+                final MultiScaleTexturePacker.Rect used = usedRectangles.get(bottom.get(i));
+                score += commonIntervalLength(used.pageX, used.pageX + used.pageWidth, x, x + width);
+            }
+        }
+        final IntArray top = usedByTop.get(y);
+        if (top != null) {
+            for (int i = 0; i < top.size; i++) {
+                final MultiScaleTexturePacker.Rect used = usedRectangles.get(top.get(i));
+                // Counted already
+                if (used.pageY == y + height) continue;
+                score += commonIntervalLength(used.pageX, used.pageX + used.pageWidth, x, x + width);
+            }
+        }
+        return score;
+    }
+
+    private boolean splitFreeNode(int free, MultiScaleTexturePacker.Rect usedNode) {
+        final int fx = freeX[free], fy = freeY[free], fw = freeWidth[free], fh = freeHeight[free];
+        // Test with SAT if the rectangles even intersect.
+        if (usedNode.pageX >= fx + fw || usedNode.pageX + usedNode.pageWidth <= fx
+                || usedNode.pageY >= fy + fh || usedNode.pageY + usedNode.pageHeight <= fy)
+            return false;
+
+        if (usedNode.pageX < fx + fw && usedNode.pageX + usedNode.pageWidth > fx) {
+            // New node at the top side of the used node.
+            if (usedNode.pageY > fy && usedNode.pageY < fy + fh) {
+                addFree(fx, fy, fw, usedNode.pageY - fy);
+            }
+
+            // New node at the bottom side of the used node.
+            if (usedNode.pageY + usedNode.pageHeight < fy + fh) {
+                addFree(fx, usedNode.pageY + usedNode.pageHeight, fw, fy + fh - (usedNode.pageY + usedNode.pageHeight));
+            }
+        }
+
+        if (usedNode.pageY < fy + fh && usedNode.pageY + usedNode.pageHeight > fy) {
+            // New node at the left side of the used node.
+            if (usedNode.pageX > fx && usedNode.pageX < fx + fw) {
+                addFree(fx, fy, usedNode.pageX - fx, fh);
+            }
+
+            // New node at the right side of the used node.
+            if (usedNode.pageX + usedNode.pageWidth < fx + fw) {
+                addFree(usedNode.pageX + usedNode.pageWidth, fy, fx + fw - (usedNode.pageX + usedNode.pageWidth), fh);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Removes free rectangles contained in others, like MaxRects.pruneFreeList.
+     * Free rectangles created before firstNew are not contained in each other and new ones are parts of removed ones,
+     * so only new ones can be contained in others. Of identical ones, the last one is kept.
+     */
+    private void pruneFreeList(int firstNew) {
+        contained.clear();
+        for (int a = firstNew; a < freeCount; a++) {
+            final int ax = freeX[a], ay = freeY[a], aw = freeWidth[a], ah = freeHeight[a];
+            if (aw < 0) continue;
+            // Rectangle which contains this one contains its corner too
+            final IntArray cell = cells[cellOf(ax, ay)];
+            for (int c = 0; c < cell.size; c++) {
+                final int b = cell.get(c);
+                final int bx = freeX[b], by = freeY[b], bw = freeWidth[b], bh = freeHeight[b];
+                if (b == a || bw < 0) continue;
+                if (ax >= bx && ay >= by && ax + aw <= bx + bw && ay + ah <= by + bh) {
+                    final boolean identical = ax == bx && ay == by && aw == bw && ah == bh;
+                    if (!identical || b > a) {
+                        contained.add(a);
+                        break;
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < contained.size; i++) {
+            removeFree(contained.get(i));
+        }
+    }
+
+    private void addFree(int x, int y, int width, int height) {
+        if (freeCount == freeX.length) {
+            final int capacity = freeCount * 2;
+            freeX = Arrays.copyOf(freeX, capacity);
+            freeY = Arrays.copyOf(freeY, capacity);
+            freeWidth = Arrays.copyOf(freeWidth, capacity);
+            freeHeight = Arrays.copyOf(freeHeight, capacity);
+            seen = Arrays.copyOf(seen, capacity);
+        }
+        final int i = freeCount++;
+        freeX[i] = x;
+        freeY[i] = y;
+        freeWidth[i] = width;
+        freeHeight[i] = height;
+        seen[i] = 0;
+        addToCells(i);
+    }
+
+    private void removeFree(int i) {
+        freeWidth[i] = -1;
+        freeRemoved++;
+    }
+
+    /** Removes removed free rectangles from the arrays, keeping the order of the rest. */
+    private void compact() {
+        int count = 0;
+        for (int i = 0; i < freeCount; i++) {
+            if (freeWidth[i] < 0) continue;
+            freeX[count] = freeX[i];
+            freeY[count] = freeY[i];
+            freeWidth[count] = freeWidth[i];
+            freeHeight[count] = freeHeight[i];
+            count++;
+        }
+        freeCount = count;
+        freeRemoved = 0;
+        Arrays.fill(seen, 0);
+        seenStamp = 0;
+
+        for (int cell = 0; cell < columns * rows; cell++) {
+            if (cells[cell] != null) cells[cell].clear();
+        }
+        for (int i = 0; i < freeCount; i++) {
+            addToCells(i);
+        }
+    }
+
+    private static int cellShift(int size) {
+        int shift = 0;
+        while ((Math.max(size, 1) - 1 >> shift) >= GRID_SIZE) {
+            shift++;
+        }
+        return shift;
+    }
+
+    private int cellOf(int x, int y) {
+        final int column = Math.min(Math.max(x >> cellShiftX, 0), columns - 1);
+        final int row = Math.min(Math.max(y >> cellShiftY, 0), rows - 1);
+        return row * columns + column;
+    }
+
+    private void addToCells(int i) {
+        final int firstColumn = Math.max(freeX[i] >> cellShiftX, 0), lastColumn = Math.min(freeX[i] + freeWidth[i] - 1 >> cellShiftX, columns - 1);
+        final int firstRow = Math.max(freeY[i] >> cellShiftY, 0), lastRow = Math.min(freeY[i] + freeHeight[i] - 1 >> cellShiftY, rows - 1);
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                IntArray cell = cells[row * columns + column];
+                if (cell == null) {
+                    cells[row * columns + column] = cell = new IntArray();
+                }
+                cell.add(i);
+            }
+        }
+    }
+
+    /** Adds indices of free rectangles which overlap cells of given area to [result], in the order of creation. */
+    private void findOverlapping(int x, int y, int width, int height, IntArray result) {
+        final int stamp = ++seenStamp;
+        final int firstColumn = Math.max(x >> cellShiftX, 0), lastColumn = Math.min(x + width - 1 >> cellShiftX, columns - 1);
+        final int firstRow = Math.max(y >> cellShiftY, 0), lastRow = Math.min(y + height - 1 >> cellShiftY, rows - 1);
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                final IntArray cell = cells[row * columns + column];
+                if (cell == null) continue;
+                for (int c = 0; c < cell.size; c++) {
+                    final int i = cell.get(c);
+                    if (freeWidth[i] < 0 || seen[i] == stamp) continue;
+                    seen[i] = stamp;
+                    result.add(i);
+                }
+            }
+        }
+        result.sort();
+    }
+
+    private static void addUsed(IntMap<IntArray> index, int edge, int used) {
+        IntArray rects = index.get(edge);
+        if (rects == null) {
+            index.put(edge, rects = new IntArray());
+        }
+        rects.add(used);
+    }
+}
@@ -0,0 +1,288 @@
+package com.darkyen.resourcepacker.util.texturepacker;
+
+import com.badlogic.gdx.utils.Array;
+import com.esotericsoftware.minlog.Log;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * Layout of pages of an atlas, remembered in a file between runs.
+ * When images change only their pixels, which is the most common change during development, their rects keep their sizes
+ * and the layout is reused without packing. Packing is deterministic, so the result is the same as if they were packed.
+ * <p>
+ * With {@link MultiScaleTexturePacker.Settings#partialRepack}, when only a few rects changed their size,
+ * only they are placed again, into free space of the page they were on, and other rects stay where they were.
+ * <p>
+ * With {@link MultiScaleTexturePacker.Settings#stableLayout}, rects which did not change always stay where they were,
+ * and new and changed rects are placed into free space, growing the pages or adding new ones when needed.
+ * Pages are packed again only when they get too empty, see {@link MultiScaleTexturePacker.Settings#stableLayoutMinOccupancy},
+ * until then, pages whose rects were all removed stay as blank pages, so that the following pages keep their names.
+ */
+final class LayoutCache {
+    private static final String LOG = "LayoutCache";
+    private static final int VERSION = 1;
+
+    private final File file;
+    private final MultiScaleTexturePacker.Settings settings;
+
+    /* Inputs of packing, remembered before packing changes the rects */
+    private String settingsKey;
+    private String[] names;
+    private int[] indices, widths, heights;
+    private boolean[] rotatable;
+    private final IdentityHashMap<ImageSource, Integer> positions = new IdentityHashMap<>();
+
+    LayoutCache(File file, MultiScaleTexturePacker.Settings settings) {
+        this.file = file;
+        this.settings = settings;
+    }
+
+    /**
+     * Remembers the inputs of packing and places them like the last time, if possible.
+     *
+     * @param rects to pack, in their deterministic order
+     * @return pages with the rects, or null if they must be packed, then call {@link #save} with the result
+     */
+    Array<MultiScaleTexturePacker.Page> load(Array<MultiScaleTexturePacker.Rect> rects) {
+        final MultiScaleTexturePacker.Settings s = settings;
+        settingsKey = s.packer + " " + s.fast + " " + s.pot + " " + s.square + " " + s.rotation + " " + s.edgePadding + " " + s.duplicatePadding
+                + " " + s.paddingX + " " + s.paddingY + " " + s.minWidth + " " + s.minHeight + " " + s.maxWidth + " " + s.maxHeight;
+        final int count = rects.size;
+        names = new String[count];
+        indices = new int[count];
+        widths = new int[count];
+        heights = new int[count];
+        rotatable = new boolean[count];
+        final HashMap<String, Integer> byName = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            final MultiScaleTexturePacker.Rect rect = rects.get(i);
+            names[i] = rect.source.name;
+            indices[i] = rect.source.index;
+            widths[i] = rect.pageWidth;
+            heights[i] = rect.pageHeight;
+            rotatable[i] = rect.canRotate();
+            positions.put(rect.source, i);
+            byName.put(names[i] + '\0' + indices[i], i);
+        }
+
+        if (!file.isFile()) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != VERSION || !in.readUTF().equals(settingsKey)) return null;
+
+            // Current rect of each remembered rect, if it did not change
+            final int oldCount = in.readInt();
+            final MultiScaleTexturePacker.Rect[] kept = new MultiScaleTexturePacker.Rect[oldCount];
+            // Current position of each remembered rect which changed, or -1
+            final int[] changed = new int[oldCount];
+            final boolean[] placed = new boolean[count];
+            int changedCount = 0, removedCount = 0;
+            for (int i = 0; i < oldCount; i++) {
+                final String name = in.readUTF();
+                final int index = in.readInt();
+                final int width = in.readInt(), height = in.readInt();
+                final boolean canRotate = in.readBoolean();
+                final Integer position = byName.get(name + '\0' + index);
+                changed[i] = -1;
+                if (position == null) {
+                    removedCount++;
+                } else if (width != widths[position] || height != heights[position] || canRotate != rotatable[position]) {
+                    changed[i] = position;
+                    changedCount++;
+                } else {
+                    kept[i] = rects.get(position);
+                    placed[position] = true;
+                }
+            }
+            final int newCount = count - (oldCount - removedCount);
+
+            final int pageCount = in.readInt();
+            final Array<MultiScaleTexturePacker.Page> pages = new Array<>(pageCount);
+            // Page of each changed rect, or -1
+            final int[] previousPage = new int[count];
+            Arrays.fill(previousPage, -1);
+            for (int p = 0; p < pageCount; p++) {
+                final MultiScaleTexturePacker.Page page = new MultiScaleTexturePacker.Page();
+                page.width = in.readInt();
+                page.height = in.readInt();
+                page.occupancy = in.readFloat();
+                final int rectCount = in.readInt();
+                page.outputRects = new Array<>(rectCount);
+                page.remainingRects = new Array<>();
+                for (int r = 0; r < rectCount; r++) {
+                    final int oldPosition = in.readInt();
+                    final int x = in.readInt(), y = in.readInt(), width = in.readInt(), height = in.readInt();
+                    final boolean rotated = in.readBoolean();
+                    final MultiScaleTexturePacker.Rect rect = kept[oldPosition];
+                    if (rect == null) {
+                        if (changed[oldPosition] != -1) previousPage[changed[oldPosition]] = p;
+                        continue;
+                    }
+                    // Rects must not change, they are packed when this fails
+                    final MultiScaleTexturePacker.Rect copy = new MultiScaleTexturePacker.Rect();
+                    copy.set(rect);
+                    copy.pageX = x;
+                    copy.pageY = y;
+                    copy.pageWidth = width;
+                    copy.pageHeight = height;
+                    copy.rotated = rotated;
+                    page.outputRects.add(copy);
+                }
+                pages.add(page);
+            }
+
+            if (changedCount == 0 && removedCount == 0 && newCount == 0) {
+                Log.debug(LOG, "Reusing layout of " + count + " rects");
+                return pages;
+            }
+            // Placing many rects into free space would give worse pages than packing them again
+            final boolean partial = settings.partialRepack && removedCount == 0 && newCount == 0
+                    && changedCount <= Math.max(count / 10, 1);
+            if (!partial && !settings.stableLayout) return null;
+
+            Array<MultiScaleTexturePacker.Rect> pending = new Array<>();
+            final MaxRectsPacker packer = new MaxRectsPacker(settings);
+            if (partial) {
+                // Changed rects go back to their page, so that other pages stay the same
+                for (int p = 0; p < pages.size; p++) {
+                    final Array<MultiScaleTexturePacker.Rect> pageRects = new Array<>();
+                    for (int i = 0; i < count; i++) {
+                        if (!placed[i] && previousPage[i] == p) pageRects.add(rects.get(i));
+                    }
+                    if (pageRects.size > 0) pending.addAll(placeInto(packer, pages, p, pageRects));
+                }
+                for (int i = 0; i < count; i++) {
+                    if (!placed[i] && previousPage[i] == -1) pending.add(rects.get(i));
+                }
+            } else {
+                for (int i = 0; i < count; i++) {
+                    if (!placed[i]) pending.add(rects.get(i));
+                }
+            }
+            if (settings.stableLayout) {
+                for (int p = 0; p < pages.size && pending.size > 0; p++) {
+                    pending = placeInto(packer, pages, p, pending);
+                }
+            }
+
+            if (pending.size > 0) {
+                if (!settings.stableLayout) {
+                    Log.debug(LOG, "Changed rects don't fit into their pages, packing again");
+                    return null;
+                }
+                // Packing changes the rects it is given
+                final Array<MultiScaleTexturePacker.Rect> copies = new Array<>(pending.size);
+                for (MultiScaleTexturePacker.Rect rect : pending) {
+                    final MultiScaleTexturePacker.Rect copy = new MultiScaleTexturePacker.Rect();
+                    copy.set(rect);
+                    copies.add(copy);
+                }
+                pages.addAll(MultiScaleTexturePacker.newPacker(settings).pack(copies));
+            }
+
+            // Pages are named by their index, so only the last ones may be dropped without renaming others,
+            // emptied pages before them stay until the pages get too empty and are packed again
+            while (pages.size > 0 && pages.peek().outputRects.size == 0) {
+                pages.pop();
+            }
+            long usedArea = 0, pageArea = 0;
+            for (int p = 0; p < pages.size; p++) {
+                final MultiScaleTexturePacker.Page page = pages.get(p);
+                for (MultiScaleTexturePacker.Rect rect : page.outputRects) {
+                    usedArea += (long) rect.pageWidth * rect.pageHeight;
+                }
+                pageArea += (long) page.width * page.height;
+            }
+            if (settings.stableLayout && usedArea < pageArea * settings.stableLayoutMinOccupancy) {
+                Log.debug(LOG, "Pages are only " + (usedArea * 100 / pageArea) + "% full, packing again");
+                return null;
+            }
+
+            Log.debug(LOG, "Reusing layout of " + count + " rects, " + (changedCount + newCount) + " changed and new rects placed, "
+                    + removedCount + " removed");
+            save(pages);
+            return pages;
+        } catch (IOException | RuntimeException e) {
+            Log.warn(LOG, "Failed to load layout from " + file + ", packing again", e);
+            return null;
+        }
+    }
+
+    /**
+     * Places the rects into free space of the page at index p, which only stable layout may grow.
+     *
+     * @return rects which did not fit
+     */
+    private Array<MultiScaleTexturePacker.Rect> placeInto(MaxRectsPacker packer, Array<MultiScaleTexturePacker.Page> pages, int p,
+                                                         Array<MultiScaleTexturePacker.Rect> rects) {
+        int maxWidth = settings.maxWidth, maxHeight = settings.maxHeight;
+        if (settings.edgePadding && !settings.duplicatePadding) {
+            maxWidth -= settings.paddingX;
+            maxHeight -= settings.paddingY;
+        }
+
+        final MultiScaleTexturePacker.Page page = pages.get(p);
+        int width = page.width, height = page.height;
+        MultiScaleTexturePacker.Page result = packer.packInto(page, rects, width, height);
+        // Growing keeps the rects in place, but not the images
+        while (settings.stableLayout && result.remainingRects.size > 0 && (width < maxWidth || height < maxHeight)) {
+            if ((width <= height || height >= maxHeight) && width < maxWidth) {
+                width = Math.min(width * 2, maxWidth);
+            } else {
+                height = Math.min(height * 2, maxHeight);
+            }
+            result = packer.packInto(page, rects, width, height);
+        }
+        if (result.remainingRects.size == rects.size) return rects;
+        pages.set(p, result);
+        final Array<MultiScaleTexturePacker.Rect> remaining = result.remainingRects;
+        result.remainingRects = new Array<>();
+        return remaining;
+    }
+
+    /** Remembers the layout of pages of the rects given to {@link #load}. */
+    void save(Array<MultiScaleTexturePacker.Page> pages) {
+        File temp = null;
+        try {
+            //noinspection ResultOfMethodCallIgnored
+            file.getParentFile().mkdirs();
+            temp = File.createTempFile("layout", ".tmp", file.getParentFile());
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                out.writeInt(VERSION);
+                out.writeUTF(settingsKey);
+                out.writeInt(names.length);
+                for (int i = 0; i < names.length; i++) {
+                    out.writeUTF(names[i]);
+                    out.writeInt(indices[i]);
+                    out.writeInt(widths[i]);
+                    out.writeInt(heights[i]);
+                    out.writeBoolean(rotatable[i]);
+                }
+                out.writeInt(pages.size);
+                for (MultiScaleTexturePacker.Page page : pages) {
+                    out.writeInt(page.width);
+                    out.writeInt(page.height);
+                    out.writeFloat(page.occupancy);
+                    out.writeInt(page.outputRects.size);
+                    for (MultiScaleTexturePacker.Rect rect : page.outputRects) {
+                        out.writeInt(positions.get(rect.source));
+                        out.writeInt(rect.pageX);
+                        out.writeInt(rect.pageY);
+                        out.writeInt(rect.pageWidth);
+                        out.writeInt(rect.pageHeight);
+                        out.writeBoolean(rect.rotated);
+                    }
+                }
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Log.warn(LOG, "Failed to save layout to " + file, e);
+            //noinspection ResultOfMethodCallIgnored
+            if (temp != null) temp.delete();
+        }
+    }
+}
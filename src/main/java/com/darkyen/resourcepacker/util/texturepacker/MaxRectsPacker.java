@@ -20,11 +20,18 @@ import com.badlogic.gdx.math.MathUtils;
 import com.badlogic.gdx.utils.Array;
 import com.badlogic.gdx.utils.Sort;
 
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * Packs pages of images using the maximal rectangles bin packing algorithm by Jukka Jylänki. A brute force binary search is
  * used to pack into the smallest bin possible.
+ * <p>
+ * With {@link MultiScaleTexturePacker.Settings#parallel}, when called in a fork join pool, heuristics are tried at the same
+ * time and sizes, which the search may try next, are tried while waiting for the current one. Results are the same as when
+ * packing serially.
  *
  * @author Nathan Sweet
  */
@@ -32,8 +39,16 @@ public class MaxRectsPacker implements MultiScaleTexturePacker.Packer {
     private RectComparator rectComparator = new RectComparator();
     private FreeRectChoiceHeuristic[] methods = FreeRectChoiceHeuristic.values();
     private MaxRects maxRects = new MaxRects();
+    private IndexedMaxRects indexedMaxRects;
     MultiScaleTexturePacker.Settings settings;
     private Sort sort = new Sort();
+    private boolean parallel;
+
+    /**
+     * Pages with at least this many rects are packed by {@link IndexedMaxRects}, which places them the same,
+     * but is faster for many rects and slower for few.
+     */
+    static final int INDEXED_MIN_RECTS = 256;
 
     public MaxRectsPacker(MultiScaleTexturePacker.Settings settings) {
         this.settings = settings;
@@ -44,6 +59,8 @@ public class MaxRectsPacker implements MultiScaleTexturePacker.Packer {
     }
 
     public Array<MultiScaleTexturePacker.Page> pack(Array<MultiScaleTexturePacker.Rect> inputRects) {
+        // Not on the common pool, whose threads don't see the operation, see MultiScaleTexturePacker.setPool
+        parallel = settings.parallel && ForkJoinTask.inForkJoinPool();
         for (int i = 0, nn = inputRects.size; i < nn; i++) {
             MultiScaleTexturePacker.Rect rect = inputRects.get(i);
             rect.pageWidth += settings.paddingX;
@@ -135,12 +152,7 @@ public class MaxRectsPacker implements MultiScaleTexturePacker.Packer {
             int minSize = Math.max(minWidth, minHeight);
             int maxSize = Math.min(settings.maxWidth, settings.maxHeight);
             BinarySearch sizeSearch = new BinarySearch(minSize, maxSize, settings.fast ? 25 : 15, settings.pot);
-            int size = sizeSearch.reset();
-            while (size != -1) {
-                MultiScaleTexturePacker.Page result = packAtSize(true, size - edgePaddingX, size - edgePaddingY, inputRects);
-                bestResult = getBest(bestResult, result);
-                size = sizeSearch.next(result == null);
-            }
+            bestResult = search(sizeSearch, true, 0, edgePaddingX, edgePaddingY, inputRects, null);
             // Rects don't fit on one page. Fill a whole page and return.
             if (bestResult == null)
                 bestResult = packAtSize(false, maxSize - edgePaddingX, maxSize - edgePaddingY, inputRects);
@@ -151,22 +163,25 @@ public class MaxRectsPacker implements MultiScaleTexturePacker.Packer {
         } else {
             BinarySearch widthSearch = new BinarySearch(minWidth, settings.maxWidth, settings.fast ? 25 : 15, settings.pot);
             BinarySearch heightSearch = new BinarySearch(minHeight, settings.maxHeight, settings.fast ? 25 : 15, settings.pot);
-            int width = widthSearch.reset();
-            int height = settings.square ? width : heightSearch.reset();
+            int height = heightSearch.reset();
+            ForkJoinTask<MultiScaleTexturePacker.Page> firstProbe = null;
             while (true) {
-                MultiScaleTexturePacker.Page bestWidthResult = null;
-                while (width != -1) {
-                    MultiScaleTexturePacker.Page result = packAtSize(true, width - edgePaddingX, height - edgePaddingY, inputRects);
-                    bestWidthResult = getBest(bestWidthResult, result);
-                    width = widthSearch.next(result == null);
-                    if (settings.square) //noinspection SuspiciousNameCombination
-                        height = width;
+                // Search of widths always starts at the same width
+                int width = widthSearch.reset();
+                ForkJoinTask<MultiScaleTexturePacker.Page> firstIfFits = null, firstIfFails = null;
+                if (parallel) {
+                    // Next height depends on the whole search of widths, start it in both heights it may lead to
+                    int heightIfFits = heightSearch.peek(false), heightIfFails = heightSearch.peek(true);
+                    if (heightIfFits != -1) firstIfFits = probe(width - edgePaddingX, heightIfFits - edgePaddingY, inputRects);
+                    if (heightIfFails != -1) firstIfFails = probe(width - edgePaddingX, heightIfFails - edgePaddingY, inputRects);
                 }
+
+                MultiScaleTexturePacker.Page bestWidthResult = search(widthSearch, false, height, edgePaddingX, edgePaddingY, inputRects, firstProbe);
                 bestResult = getBest(bestResult, bestWidthResult);
-                if (settings.square) break;
                 height = heightSearch.next(bestWidthResult == null);
+                firstProbe = bestWidthResult == null ? firstIfFails : firstIfFits;
+                cancel(bestWidthResult == null ? firstIfFits : firstIfFails);
                 if (height == -1) break;
-                width = widthSearch.reset();
             }
             // Rects don't fit on one page. Fill a whole page and return.
             if (bestResult == null)
@@ -176,29 +191,98 @@ public class MaxRectsPacker implements MultiScaleTexturePacker.Packer {
         }
     }
 
+    /**
+     * Packs all rects at each size given by the search, until it ends.
+     * When packing in parallel, both sizes which may come next are packed while waiting for the current one.
+     *
+     * @param square if true, the searched size is used as both width and height, otherwise only as width
+     * @param firstProbe already started packing at the first size of the search, or null
+     * @return the best page which fits all rects, or null if there is none
+     */
+    private MultiScaleTexturePacker.Page search(BinarySearch search, boolean square, int height, int edgePaddingX, int edgePaddingY,
+                                                Array<MultiScaleTexturePacker.Rect> inputRects, ForkJoinTask<MultiScaleTexturePacker.Page> firstProbe) {
+        MultiScaleTexturePacker.Page bestResult = null;
+        int size = search.reset();
+        if (!parallel) {
+            while (size != -1) {
+                MultiScaleTexturePacker.Page result = packAtSize(true, size - edgePaddingX, (square ? size : height) - edgePaddingY, inputRects);
+                bestResult = getBest(bestResult, result);
+                size = search.next(result == null);
+            }
+            return bestResult;
+        }
+
+        ForkJoinTask<MultiScaleTexturePacker.Page> probe = firstProbe != null ? firstProbe
+                : probe(size - edgePaddingX, (square ? size : height) - edgePaddingY, inputRects);
+        while (size != -1) {
+            final int sizeIfFits = search.peek(false), sizeIfFails = search.peek(true);
+            final ForkJoinTask<MultiScaleTexturePacker.Page> probeIfFits = sizeIfFits == -1 ? null
+                    : probe(sizeIfFits - edgePaddingX, (square ? sizeIfFits : height) - edgePaddingY, inputRects);
+            final ForkJoinTask<MultiScaleTexturePacker.Page> probeIfFails = sizeIfFails == -1 ? null : sizeIfFails == sizeIfFits ? probeIfFits
+                    : probe(sizeIfFails - edgePaddingX, (square ? sizeIfFails : height) - edgePaddingY, inputRects);
+
+            MultiScaleTexturePacker.Page result = probe.join();
+            bestResult = getBest(bestResult, result);
+            size = search.next(result == null);
+            probe = result == null ? probeIfFails : probeIfFits;
+            final ForkJoinTask<MultiScaleTexturePacker.Page> unused = result == null ? probeIfFits : probeIfFails;
+            if (unused != probe) cancel(unused);
+        }
+        return bestResult;
+    }
+
+    /** Starts {@link #packAtSize} of all rects in the current pool. */
+    private ForkJoinTask<MultiScaleTexturePacker.Page> probe(final int width, final int height, final Array<MultiScaleTexturePacker.Rect> inputRects) {
+        return new RecursiveTask<MultiScaleTexturePacker.Page>() {
+            @Override
+            protected MultiScaleTexturePacker.Page compute() {
+                return packAtSize(true, width, height, inputRects);
+            }
+        }.fork();
+    }
+
+    /** Cancels the probe, if it was not started yet, its result is not needed. */
+    private static void cancel(ForkJoinTask<MultiScaleTexturePacker.Page> probe) {
+        if (probe != null) probe.cancel(false);
+    }
+
     /**
      * @param fully If true, the only results that pack all rects will be considered. If false, all results are considered, not
      *              all rects may be packed.
      */
-    private MultiScaleTexturePacker.Page packAtSize(boolean fully, int width, int height, Array<MultiScaleTexturePacker.Rect> inputRects) {
-        MultiScaleTexturePacker.Page bestResult = null;
-        for (FreeRectChoiceHeuristic method : methods) {
-            maxRects.init(width, height);
-            MultiScaleTexturePacker.Page result;
-            if (!settings.fast) {
-                result = maxRects.pack(inputRects, method);
-            } else {
-                Array<MultiScaleTexturePacker.Rect> remaining = new Array<>();
-                for (int ii = 0, nn = inputRects.size; ii < nn; ii++) {
-                    MultiScaleTexturePacker.Rect rect = inputRects.get(ii);
-                    if (maxRects.insert(rect, method) == null) {
-                        while (ii < nn)
-                            remaining.add(inputRects.get(ii++));
+    private MultiScaleTexturePacker.Page packAtSize(final boolean fully, final int width, final int height, final Array<MultiScaleTexturePacker.Rect> inputRects) {
+        final MultiScaleTexturePacker.Page[] results = new MultiScaleTexturePacker.Page[methods.length];
+        if (parallel) {
+            // Each heuristic needs its own state
+            final ArrayList<RecursiveTask<MultiScaleTexturePacker.Page>> tasks = new ArrayList<>(methods.length);
+            for (final FreeRectChoiceHeuristic method : methods) {
+                tasks.add(new RecursiveTask<MultiScaleTexturePacker.Page>() {
+                    @Override
+                    protected MultiScaleTexturePacker.Page compute() {
+                        return packWithMethod(newCore(inputRects.size), method, width, height, inputRects);
                     }
-                }
-                result = maxRects.getResult();
-                result.remainingRects = remaining;
+                });
+            }
+            ForkJoinTask.invokeAll(tasks);
+            for (int i = 0; i < results.length; i++) {
+                results[i] = tasks.get(i).join();
+            }
+        } else {
+            final Core core;
+            if (inputRects.size < INDEXED_MIN_RECTS) {
+                core = maxRects;
+            } else {
+                if (indexedMaxRects == null) indexedMaxRects = new IndexedMaxRects(settings);
+                core = indexedMaxRects;
+            }
+            for (int i = 0; i < results.length; i++) {
+                results[i] = packWithMethod(core, methods[i], width, height, inputRects);
             }
+        }
+
+        // In the order of heuristics, so that ties are resolved the same way, no matter how they were packed
+        MultiScaleTexturePacker.Page bestResult = null;
+        for (MultiScaleTexturePacker.Page result : results) {
             if (fully && result.remainingRects.size > 0) continue;
             if (result.outputRects.size == 0) continue;
             bestResult = getBest(bestResult, result);
@@ -206,12 +290,93 @@ public class MaxRectsPacker implements MultiScaleTexturePacker.Packer {
         return bestResult;
     }
 
+    /** @return new core for packing of given number of rects, {@link IndexedMaxRects} when there are many of them */
+    private Core newCore(int rects) {
+        return rects < INDEXED_MIN_RECTS ? new MaxRects() : new IndexedMaxRects(settings);
+    }
+
+    private MultiScaleTexturePacker.Page packWithMethod(Core maxRects, FreeRectChoiceHeuristic method, int width, int height,
+                                                        Array<MultiScaleTexturePacker.Rect> inputRects) {
+        maxRects.init(width, height);
+        if (!settings.fast) {
+            return maxRects.pack(inputRects, method);
+        }
+        Array<MultiScaleTexturePacker.Rect> remaining = new Array<>();
+        for (int ii = 0, nn = inputRects.size; ii < nn; ii++) {
+            MultiScaleTexturePacker.Rect rect = inputRects.get(ii);
+            if (maxRects.insert(rect, method) == null) {
+                while (ii < nn)
+                    remaining.add(inputRects.get(ii++));
+            }
+        }
+        MultiScaleTexturePacker.Page result = maxRects.getResult();
+        result.remainingRects = remaining;
+        return result;
+    }
+
+    /**
+     * Places rects into free space of a page, around its rects, which stay where they are.
+     * Used to update a page without packing it again.
+     *
+     * @param page whose output rects stay in place, it is not changed
+     * @param rects to add, without padding, they are not changed
+     * @param width of the area in which the rects are placed, at least the width of the page
+     * @param height of the area in which the rects are placed, at least the height of the page
+     * @return new page with all rects which fit, those which don't are in {@link MultiScaleTexturePacker.Page#remainingRects}.
+     * The page is not smaller than the original page.
+     */
+    public MultiScaleTexturePacker.Page packInto(MultiScaleTexturePacker.Page page, Array<MultiScaleTexturePacker.Rect> rects, int width, int height) {
+        final Core core = newCore(page.outputRects.size + rects.size);
+        core.init(width, height);
+        for (MultiScaleTexturePacker.Rect placed : page.outputRects) {
+            core.occupy(placed);
+        }
+        final Array<MultiScaleTexturePacker.Rect> remaining = new Array<>();
+        for (MultiScaleTexturePacker.Rect rect : rects) {
+            final MultiScaleTexturePacker.Rect padded = new MultiScaleTexturePacker.Rect();
+            padded.set(rect);
+            padded.pageWidth += settings.paddingX;
+            padded.pageHeight += settings.paddingY;
+            if (core.insert(padded, FreeRectChoiceHeuristic.BestShortSideFit) == null) {
+                remaining.add(rect);
+            }
+        }
+
+        final MultiScaleTexturePacker.Page result = core.getResult();
+        result.remainingRects = remaining;
+        sort.sort(result.outputRects, rectComparator);
+        // Image of the page stays the same size, unless it has to grow
+        result.width = Math.max(result.width, page.width);
+        result.height = Math.max(result.height, page.height);
+        if (settings.square) {
+            result.width = Math.max(result.width, result.height);
+            result.height = Math.max(result.width, result.height);
+        }
+        return result;
+    }
+
     private MultiScaleTexturePacker.Page getBest(MultiScaleTexturePacker.Page result1, MultiScaleTexturePacker.Page result2) {
         if (result1 == null) return result2;
         if (result2 == null) return result1;
         return result1.occupancy > result2.occupancy ? result1 : result2;
     }
 
+    /** Packs rects into a single page, see {@link MaxRects}. */
+    interface Core {
+        void init(int width, int height);
+
+        /** Packs a single rect. Order is defined externally. */
+        MultiScaleTexturePacker.Rect insert(MultiScaleTexturePacker.Rect rect, FreeRectChoiceHeuristic method);
+
+        /** For each rectangle, packs each one then chooses the best and packs that. */
+        MultiScaleTexturePacker.Page pack(Array<MultiScaleTexturePacker.Rect> rects, FreeRectChoiceHeuristic method);
+
+        /** Marks the area of an already placed rect as used, the rect is then in the result. */
+        void occupy(MultiScaleTexturePacker.Rect placed);
+
+        MultiScaleTexturePacker.Page getResult();
+    }
+
     static class BinarySearch {
         int min, max, fuzziness, low, high, current;
         boolean pot;
@@ -230,6 +395,20 @@ public class MaxRectsPacker implements MultiScaleTexturePacker.Packer {
             return pot ? (int) Math.pow(2, current) : current;
         }
 
+        /** @return what {@link #next(boolean)} would return for given result, without moving */
+        public int peek(boolean result) {
+            final int low = this.low, high = this.high, current = this.current;
+            final int next = next(result);
+            this.low = low;
+            this.high = high;
+            this.current = current;
+            return next;
+        }
+
+        /**
+         * @param result true if the rects did not fit at the current size, so the search continues with larger sizes
+         * @return next size to try, or -1 when the search ended
+         */
         public int next(boolean result) {
             if (low >= high) return -1;
             if (result)
@@ -249,7 +428,7 @@ public class MaxRectsPacker implements MultiScaleTexturePacker.Packer {
      * @author Jukka Jyl�nki
      * @author Nathan Sweet
      */
-    class MaxRects {
+    class MaxRects implements Core {
         private int binWidth;
         private int binHeight;
         private final Array<MultiScaleTexturePacker.Rect> usedRectangles = new Array<>();
@@ -354,6 +533,10 @@ public class MaxRectsPacker implements MultiScaleTexturePacker.Packer {
             return result;
         }
 
+        public void occupy(MultiScaleTexturePacker.Rect placed) {
+            placeRect(placed);
+        }
+
         private void placeRect(MultiScaleTexturePacker.Rect node) {
             int numRectanglesToProcess = freeRectangles.size;
             for (int i = 0; i < numRectanglesToProcess; i++) {
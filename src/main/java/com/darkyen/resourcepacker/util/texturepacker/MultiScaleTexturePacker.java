@@ -39,6 +39,9 @@ import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * @author Nathan Sweet, Jan Polák
@@ -51,6 +54,8 @@ public class MultiScaleTexturePacker {
     /** ImageName -> (ImageIndex -> ImageSource) */
     private final ObjectMap<String, IntMap<ImageSource>> imageSourcesByName = new ObjectMap<>();
     private int totalImageCountHint = 0;
+    private File layoutFile;
+    private ForkJoinPool pool;
 
     public MultiScaleTexturePacker(Settings settings) {
         this.settings = settings;
@@ -62,10 +67,40 @@ public class MultiScaleTexturePacker {
                 throw new RuntimeException("If pot is true, maxHeight must be a power of two: " + settings.maxHeight);
         }
 
-        packer = new MaxRectsPacker(settings);
+        packer = newPacker(settings);
     }
 
 
+    /** @return new packer of the type given by {@link Settings#packer} */
+    public static Packer newPacker(Settings settings) {
+        switch (settings.packer) {
+            case Skyline:
+                return new SkylinePacker(settings);
+            case Guillotine:
+                return new GuillotinePacker(settings);
+            default:
+                return new MaxRectsPacker(settings);
+        }
+    }
+
+    /**
+     * Remembers the layout of pages in the file, so that the next packing of images of the same sizes can reuse it,
+     * see {@link LayoutCache}.
+     *
+     * @param layoutFile which is kept between runs, null to always pack
+     */
+    public void setLayoutFile(File layoutFile) {
+        this.layoutFile = layoutFile;
+    }
+
+    /**
+     * @param pool in which pages are packed with {@link Settings#parallel}, when not packing in a fork join pool already,
+     *             null to pack serially then
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
     public ImageSource addImage(String name, int index, int scaleFactor, Image image) {
         IntMap<ImageSource> indices = imageSourcesByName.get(name);
         if (indices == null) {
@@ -102,6 +137,8 @@ public class MultiScaleTexturePacker {
                 }
             }
         }
+        // Hash order of the maps depends on the order in which images were added, packing must not
+        rects.sort();
 
         if (settings.alias) {
             int size = rects.size;
@@ -119,7 +156,17 @@ public class MultiScaleTexturePacker {
             }
         }
 
-        final Array<Page> pages = packer.pack(rects);
+        Array<Page> pages;
+        if (settings.parallel && pool != null && !ForkJoinTask.inForkJoinPool()) {
+            pages = pool.invoke(new RecursiveTask<Array<Page>>() {
+                @Override
+                protected Array<Page> compute() {
+                    return packPages(rects);
+                }
+            });
+        } else {
+            pages = packPages(rects);
+        }
 
         Arrays.sort(scales);
         // Iterate in reverse so that smallest scale (usually 1, base scale) is left in "pages"
@@ -140,6 +187,23 @@ public class MultiScaleTexturePacker {
         } catch (IOException ex) {
             throw new RuntimeException("Error writing pack file", ex);
         }
+
+        for (IntMap<ImageSource> indices : imageSourcesByName.values()) {
+            for (ImageSource source : indices.values()) {
+                source.dispose();
+            }
+        }
+    }
+
+    /** @return pages of the rects, from the layout file, if possible */
+    private Array<Page> packPages(Array<Rect> rects) {
+        final LayoutCache layoutCache = layoutFile == null ? null : new LayoutCache(layoutFile, settings);
+        Array<Page> pages = layoutCache == null ? null : layoutCache.load(rects);
+        if (pages == null) {
+            pages = packer.pack(rects);
+            if (layoutCache != null) layoutCache.save(pages);
+        }
+        return pages;
     }
 
     private void writeImages(File outputDir, String scaledPackFileName, Array<Page> pages, int scaleFactor) {
@@ -456,7 +520,10 @@ public class MultiScaleTexturePacker {
             pageHeight = rect.pageHeight;
             rotated = rect.rotated;
             aliases.clear();
-            aliases.addAll(rect.aliases);
+            // Own iterator, because the shared iterator of the set is not safe when packing in parallel
+            for (ImageSource alias : new ObjectSet.ObjectSetIterator<>(rect.aliases)) {
+                aliases.add(alias);
+            }
             score1 = rect.score1;
             score2 = rect.score2;
         }
@@ -511,7 +578,25 @@ public class MultiScaleTexturePacker {
         public boolean premultiplyAlpha;
         public boolean useIndexes = true;
         public boolean bleed = true;
+        /** Account rasterized images in {@link com.darkyen.resourcepacker.image.ImageMemory} of the operation, which spills them to disk when over budget. */
         public boolean limitMemory = true;
+        /** Try packing heuristics and page sizes at the same time, in the current fork join pool or in the one given by {@link MultiScaleTexturePacker#setPool}. Results stay the same. */
+        public boolean parallel;
+        /** Algorithm which places images on pages, the fast ones are good for development builds */
+        public PackerType packer = PackerType.MaxRects;
+        /**
+         * When only a few images changed their size since the layout was remembered (see {@link MultiScaleTexturePacker#setLayoutFile}), place only them
+         * into free space of the page they were on, instead of packing all again. Much faster, but the layout then depends on previous runs.
+         */
+        public boolean partialRepack;
+        /**
+         * Keep rects which did not change where they were the last time (see {@link MultiScaleTexturePacker#setLayoutFile}) and place new and changed
+         * rects into free space, growing pages or adding new ones when needed, so that unchanged pages stay the same.
+         * The layout then depends on previous runs.
+         */
+        public boolean stableLayout;
+        /** When the pages of {@link #stableLayout} are less full than this, they are packed again. */
+        public float stableLayoutMinOccupancy = 0.6f;
         public int[] scales = {1};
         public String atlasExtension = ".atlas";
 
@@ -551,6 +636,11 @@ public class MultiScaleTexturePacker {
             useIndexes = settings.useIndexes;
             bleed = settings.bleed;
             limitMemory = settings.limitMemory;
+            parallel = settings.parallel;
+            packer = settings.packer;
+            partialRepack = settings.partialRepack;
+            stableLayout = settings.stableLayout;
+            stableLayoutMinOccupancy = settings.stableLayoutMinOccupancy;
             scales = settings.scales;
             atlasExtension = settings.atlasExtension;
         }
@@ -568,4 +658,14 @@ public class MultiScaleTexturePacker {
         Array<Page> pack(Array<Rect> inputRects);
     }
 
+    /** Algorithms which place images on pages, see {@link Settings#packer} */
+    public enum PackerType {
+        /** {@link MaxRectsPacker}, the best occupancy */
+        MaxRects,
+        /** {@link SkylinePacker}, many times faster, a bit worse occupancy */
+        Skyline,
+        /** {@link GuillotinePacker}, many times faster, a bit worse occupancy */
+        Guillotine
+    }
+
 }
@@ -0,0 +1,171 @@
+package com.darkyen.resourcepacker.util.texturepacker;
+
+import com.badlogic.gdx.utils.Array;
+
+import java.util.Arrays;
+
+/**
+ * Packs pages of images by keeping only the skyline of placed rects, that is, the lowest free y of each column.
+ * Each page is packed twice, once placing rects as low as possible (bottom-left) and once where they leave the smallest
+ * area under them unusable (min-waste), and the better result is used.
+ * <p>
+ * Empty space under the skyline is never filled, so pages are a bit emptier than with {@link MaxRectsPacker},
+ * but each rect is placed in time proportional to the length of the skyline.
+ *
+ * @see FastPacker
+ */
+public class SkylinePacker extends FastPacker {
+    private int binWidth, binHeight;
+
+    /* Segments of the skyline from left to right, they cover the whole width of the bin */
+    private int[] segmentX = new int[16], segmentY = new int[16], segmentWidth = new int[16];
+    private int segments;
+
+    /* Best position found for the current rect */
+    private int bestIndex, bestX, bestY, bestWidth, bestHeight;
+    private boolean bestRotated;
+    private long bestScore1, bestScore2;
+
+    public SkylinePacker(MultiScaleTexturePacker.Settings settings) {
+        super(settings);
+    }
+
+    @Override
+    protected MultiScaleTexturePacker.Page packAtSize(int width, int height, Array<MultiScaleTexturePacker.Rect> inputRects) {
+        final MultiScaleTexturePacker.Page bottomLeft = packAtSize(width, height, inputRects, false);
+        final MultiScaleTexturePacker.Page minWaste = packAtSize(width, height, inputRects, true);
+        return better(bottomLeft, minWaste);
+    }
+
+    private MultiScaleTexturePacker.Page packAtSize(int width, int height, Array<MultiScaleTexturePacker.Rect> inputRects, boolean minWaste) {
+        binWidth = width;
+        binHeight = height;
+        segments = 0;
+        insertSegment(0, 0, 0, width);
+
+        final Array<MultiScaleTexturePacker.Rect> placed = new Array<>(inputRects.size);
+        final Array<MultiScaleTexturePacker.Rect> remaining = new Array<>();
+        for (int i = 0; i < inputRects.size; i++) {
+            final MultiScaleTexturePacker.Rect rect = inputRects.get(i);
+            bestIndex = -1;
+            bestScore1 = Long.MAX_VALUE;
+            bestScore2 = Long.MAX_VALUE;
+            findPosition(rect.pageWidth, rect.pageHeight, false, minWaste);
+            if (canRotate(rect)) {
+                findPosition(rotatedWidth(rect), rotatedHeight(rect), true, minWaste);
+            }
+
+            if (bestIndex == -1) {
+                remaining.add(rect);
+                continue;
+            }
+            addLevel(bestIndex, bestX, bestY, bestWidth, bestHeight);
+            placed.add(place(rect, bestX, bestY, bestRotated));
+        }
+        return page(placed, remaining);
+    }
+
+    private void findPosition(int width, int height, boolean rotated, boolean minWaste) {
+        for (int i = 0; i < segments; i++) {
+            final int y = fit(i, width, height);
+            if (y == -1) continue;
+
+            final long score1, score2;
+            if (minWaste) {
+                score1 = waste(i, width, y);
+                score2 = y + height;
+            } else {
+                score1 = y + height;
+                score2 = segmentX[i];
+            }
+            if (score1 < bestScore1 || (score1 == bestScore1 && score2 < bestScore2)) {
+                bestScore1 = score1;
+                bestScore2 = score2;
+                bestIndex = i;
+                bestX = segmentX[i];
+                bestY = y;
+                bestWidth = width;
+                bestHeight = height;
+                bestRotated = rotated;
+            }
+        }
+    }
+
+    /** @return y at which the rect fits with its left side on the segment, -1 if it does not fit */
+    private int fit(int index, int width, int height) {
+        if (segmentX[index] + width > binWidth) return -1;
+        int y = 0;
+        int remaining = width;
+        int i = index;
+        do {
+            y = Math.max(y, segmentY[i]);
+            if (y + height > binHeight) return -1;
+            remaining -= segmentWidth[i];
+            i++;
+        } while (remaining > 0);
+        return y;
+    }
+
+    /** @return area under the rect placed at y with its left side on the segment, which can no longer be used */
+    private long waste(int index, int width, int y) {
+        final int right = segmentX[index] + width;
+        long waste = 0;
+        for (int i = index; i < segments && segmentX[i] < right; i++) {
+            final int covered = Math.min(segmentX[i] + segmentWidth[i], right) - segmentX[i];
+            waste += (long) covered * (y - segmentY[i]);
+        }
+        return waste;
+    }
+
+    private void addLevel(int index, int x, int y, int width, int height) {
+        if (width == 0 || height == 0) return;
+        insertSegment(index, x, y + height, width);
+
+        // Cut segments under the new one
+        final int right = x + width;
+        final int i = index + 1;
+        while (i < segments && segmentX[i] < right) {
+            final int shrink = right - segmentX[i];
+            if (shrink >= segmentWidth[i]) {
+                removeSegment(i);
+            } else {
+                segmentX[i] += shrink;
+                segmentWidth[i] -= shrink;
+                break;
+            }
+        }
+
+        // Merge neighbours of the same height
+        for (int s = Math.max(index - 1, 0); s + 1 < segments && s <= index; ) {
+            if (segmentY[s] == segmentY[s + 1]) {
+                segmentWidth[s] += segmentWidth[s + 1];
+                removeSegment(s + 1);
+                index--;
+            } else {
+                s++;
+            }
+        }
+    }
+
+    private void insertSegment(int index, int x, int y, int width) {
+        if (segments == segmentX.length) {
+            segmentX = Arrays.copyOf(segmentX, segments * 2);
+            segmentY = Arrays.copyOf(segmentY, segments * 2);
+            segmentWidth = Arrays.copyOf(segmentWidth, segments * 2);
+        }
+        System.arraycopy(segmentX, index, segmentX, index + 1, segments - index);
+        System.arraycopy(segmentY, index, segmentY, index + 1, segments - index);
+        System.arraycopy(segmentWidth, index, segmentWidth, index + 1, segments - index);
+        segmentX[index] = x;
+        segmentY[index] = y;
+        segmentWidth[index] = width;
+        segments++;
+    }
+
+    private void removeSegment(int index) {
+        System.arraycopy(segmentX, index + 1, segmentX, index, segments - index - 1);
+        System.arraycopy(segmentY, index + 1, segmentY, index, segments - index - 1);
+        System.arraycopy(segmentWidth, index + 1, segmentWidth, index, segments - index - 1);
+        segments--;
+    }
+}
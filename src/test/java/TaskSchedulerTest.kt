@@ -0,0 +1,73 @@
+import com.darkyen.resourcepacker.ParallelTasks
+import com.darkyen.resourcepacker.Resource
+import com.darkyen.resourcepacker.Task
+import com.darkyen.resourcepacker.packResources
+import java.io.File
+import java.nio.file.Files
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Test of local tasks running on directories of the root at the same time, with [ParallelTasks].
+ * Each directory must get the tasks in their order and when a task fails,
+ * the error must be thrown only after no task runs anymore.
+ */
+fun main(args: Array<String>) {
+    val from = Files.createTempDirectory("TaskSchedulerTest").toFile()
+    val to = Files.createTempDirectory("TaskSchedulerTestResult").toFile()
+    for (i in 0 until 8) {
+        File(from, "dir$i").mkdirs()
+        File(from, "dir$i/file$i.txt").writeText("$i")
+    }
+    val settings = listOf(ParallelTasks to true)
+
+    // Tasks of each directory, in the order in which they were done
+    val done = ConcurrentHashMap<String, MutableList<String>>()
+    val active = AtomicInteger()
+
+    class Step(private val label: String, private val after: String?, private val failIn: String? = null) : Task() {
+        override val local = true
+
+        override fun operate(directory: Resource.ResourceDirectory): Boolean {
+            if (!directory.name.startsWith("dir")) return false
+            active.incrementAndGet()
+            try {
+                val tasks = done.getOrPut(directory.name) { ArrayList() }
+                synchronized(tasks) {
+                    check(after == null || tasks.lastOrNull() == after) { "$label in ${directory.name} after $tasks" }
+                }
+                // Give other directories time to run
+                Thread.sleep(if (directory.name == failIn) 5 else 50)
+                if (directory.name == failIn) {
+                    throw IllegalStateException("$label failed in ${directory.name}")
+                }
+                synchronized(tasks) {
+                    tasks.add(label)
+                }
+                return true
+            } finally {
+                active.decrementAndGet()
+            }
+        }
+    }
+
+    packResources(from, to, settings, listOf(Step("first", null), Step("second", "first"), Step("third", "second")))
+    for (i in 0 until 8) {
+        check(done["dir$i"] == listOf("first", "second", "third")) { "Tasks of dir$i in wrong order: ${done["dir$i"]}" }
+    }
+
+    done.clear()
+    try {
+        packResources(from, to, settings, listOf(Step("first", null), Step("second", "first", failIn = "dir3"), Step("third", "second")))
+        throw AssertionError("Error of a task was not thrown")
+    } catch (e: IllegalStateException) {
+        check(e.message == "second failed in dir3") { "Wrong error: $e" }
+    }
+    check(active.get() == 0) { "${active.get()} tasks still running after the error was thrown" }
+    val snapshot = done.mapValues { ArrayList(it.value) }
+    Thread.sleep(200)
+    check(done.mapValues { ArrayList(it.value) } == snapshot) { "Tasks changed the tree after the error was thrown" }
+    check(done["dir3"] == listOf("first")) { "Tasks of dir3 continued after the error: ${done["dir3"]}" }
+
+    println("TaskSchedulerTest passed")
+}
@@ -0,0 +1,82 @@
+import com.darkyen.resourcepacker.Resource
+import com.darkyen.resourcepacker.Task
+import com.darkyen.resourcepacker.watchResources
+import java.io.File
+import java.nio.file.Files
+
+/**
+ * Test of the watch mode. Changes resources while [watchResources] runs and checks that only the changed
+ * directory is packed again and how long it takes until its output is updated.
+ * Packing of a broken file must fail without ending the watching and keep the previous output.
+ */
+fun main(args: Array<String>) {
+    val from = Files.createTempDirectory("WatchResourcesTest").toFile()
+    val to = Files.createTempDirectory("WatchResourcesTestResult").toFile()
+    File(from, "a").mkdirs()
+    File(from, "b").mkdirs()
+    File(from, "a/one.txt").writeText("one")
+    File(from, "b/two.txt").writeText("two")
+    File(from, "root.txt").writeText("root")
+
+    var error: Throwable? = null
+    val watcher = Thread {
+        try {
+            watchResources(from, to, tasks = listOf(FailOnBrokenTask))
+        } catch (e: Throwable) {
+            error = e
+        }
+    }
+    watcher.start()
+
+    fun await(what: String, condition: () -> Boolean): Long {
+        val startTime = System.currentTimeMillis()
+        while (!condition()) {
+            check(error == null) { "Watching failed: $error" }
+            check(System.currentTimeMillis() - startTime < 10_000) { "Timed out waiting for $what" }
+            Thread.sleep(5)
+        }
+        val time = System.currentTimeMillis() - startTime
+        println("$what in $time ms")
+        return time
+    }
+
+    await("Initial pack") {
+        File(to, "a/one.txt").isFile && File(to, "b/two.txt").isFile && File(to, "root.txt").isFile
+    }
+    val untouched = File(to, "b/two.txt").lastModified()
+    // Modification times may have a second of granularity
+    Thread.sleep(1100)
+
+    File(from, "a/one.txt").writeText("changed")
+    await("Repack of changed file") { File(to, "a/one.txt").readText() == "changed" }
+    File(from, "a/three.txt").writeText("three")
+    await("Repack of added file") { File(to, "a/three.txt").isFile }
+    File(from, "a/three.txt").writeText("broken")
+    // Failure is only logged, there is nothing to wait for
+    Thread.sleep(500)
+    check(watcher.isAlive && error == null) { "Watching ended when packing failed: $error" }
+    check(File(to, "a/three.txt").readText() == "three") { "Output of failed pack was changed" }
+    File(from, "a/three.txt").writeText("fixed")
+    await("Repack of fixed file") { File(to, "a/three.txt").readText() == "fixed" }
+    File(from, "a/one.txt").delete()
+    await("Repack of removed file") { !File(to, "a/one.txt").exists() }
+    check(File(to, "b/two.txt").lastModified() == untouched) { "Output of unchanged directory was written again" }
+    check(File(to, "root.txt").readText() == "root")
+
+    watcher.interrupt()
+    watcher.join(10_000)
+    check(!watcher.isAlive) { "Watching did not stop when interrupted" }
+    check(error == null) { "Watching failed: $error" }
+
+    println("WatchResourcesTest passed")
+}
+
+/** Fails on files whose content is "broken", like tasks fail on images which are being saved */
+private object FailOnBrokenTask : Task() {
+    override fun operate(file: Resource.ResourceFile): Boolean {
+        if (file.file.readText() == "broken") {
+            throw IllegalArgumentException("$file is broken")
+        }
+        return false
+    }
+}
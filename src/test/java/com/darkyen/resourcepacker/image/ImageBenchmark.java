@@ -0,0 +1,119 @@
+package com.darkyen.resourcepacker.image;
+
+import com.darkyen.resourcepacker.util.batik.SVGFile;
+import com.darkyen.resourcepacker.util.tools.texturepacker.ColorBleedEffect;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of image resizing, color bleeding and SVG rasterization, on synthetic images.
+ *
+ * Run with ./wemi testing:benchmark:run
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImageBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Resize {
+        @Param({"64", "512", "2048"})
+        public int size;
+
+        @Param({"Nearest", "Bilinear", "Bicubic"})
+        public ImageScaling scaling;
+
+        BufferedImage image;
+
+        @Setup
+        public void setup() {
+            image = noiseImage(size, new Random(size), false);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Bleed {
+        @Param({"64", "512", "2048"})
+        public int size;
+
+        BufferedImage image;
+
+        @Setup
+        public void setup() {
+            image = noiseImage(size, new Random(size), true);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Svg {
+        @Param({"10", "100", "1000"})
+        public int shapes;
+
+        @Param({"64", "512"})
+        public int size;
+
+        SVGFile svg;
+
+        @Setup
+        public void setup() throws Exception {
+            final Random random = new Random(shapes);
+            final StringBuilder sb = new StringBuilder();
+            sb.append("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"100\" height=\"100\" viewBox=\"0 0 100 100\">\n");
+            for (int i = 0; i < shapes; i++) {
+                final String color = String.format("#%06x", random.nextInt(0x1000000));
+                if ((i & 1) == 0) {
+                    sb.append("<circle cx=\"").append(random.nextInt(100)).append("\" cy=\"").append(random.nextInt(100))
+                            .append("\" r=\"").append(1 + random.nextInt(20)).append("\" fill=\"").append(color).append("\"/>\n");
+                } else {
+                    sb.append("<path d=\"M").append(random.nextInt(100)).append(' ').append(random.nextInt(100))
+                            .append(" Q").append(random.nextInt(100)).append(' ').append(random.nextInt(100))
+                            .append(' ').append(random.nextInt(100)).append(' ').append(random.nextInt(100))
+                            .append(" Z\" stroke=\"").append(color).append("\" fill-opacity=\"0.5\"/>\n");
+                }
+            }
+            sb.append("</svg>\n");
+            svg = new SVGFile(null, new ByteArrayInputStream(sb.toString().getBytes(StandardCharsets.UTF_8)));
+        }
+    }
+
+    @Benchmark
+    public BufferedImage resizeDown(Resize resize) {
+        return Image.Companion.resizeImage(resize.image, resize.size / 3, resize.size / 3, null, resize.scaling);
+    }
+
+    @Benchmark
+    public BufferedImage resizeUp(Resize resize) {
+        return Image.Companion.resizeImage(resize.image, resize.size * 3 / 2, resize.size * 3 / 2, null, resize.scaling);
+    }
+
+    @Benchmark
+    public BufferedImage colorBleed(Bleed bleed) {
+        return new ColorBleedEffect().processImage(bleed.image, 2);
+    }
+
+    @Benchmark
+    public BufferedImage svgRasterize(Svg svg) throws Exception {
+        return svg.svg.rasterize(svg.size, svg.size, null);
+    }
+
+    /** @return image with random content, with random transparent holes if {@code holes} */
+    static BufferedImage noiseImage(int size, Random random, boolean holes) {
+        final BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                if (holes && random.nextInt(4) == 0) {
+                    continue;
+                }
+                image.setRGB(x, y, 0xFF000000 | random.nextInt(0x1000000));
+            }
+        }
+        return image;
+    }
+}
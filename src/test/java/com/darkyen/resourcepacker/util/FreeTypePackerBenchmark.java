@@ -0,0 +1,68 @@
+package com.darkyen.resourcepacker.util;
+
+import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.graphics.Color;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.GdxNativesLoader;
+import com.badlogic.gdx.utils.IntSet;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of {@link FreeTypePacker#generate(FreeTypePacker.FreeTypeFontParameter, FileHandle)} on the test font.
+ *
+ * Run with ./wemi testing:benchmark:run
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FreeTypePackerBenchmark {
+
+    @Param({"16", "64", "128"})
+    public int size;
+
+    @Param({"false", "true"})
+    public boolean effects;
+
+    private FreeTypePacker packer;
+    private FileHandle outputFolder;
+
+    @Setup
+    public void setup() throws IOException {
+        GdxNativesLoader.load();
+        packer = new FreeTypePacker(new FileHandle(new File("src/test/resources/UISkin.pack/goudy-bookletter-1911.32.0-126.ttf")));
+        outputFolder = new FileHandle(Files.createTempDirectory("FreeTypePackerBenchmark").toFile());
+    }
+
+    @TearDown
+    public void tearDown() {
+        packer.dispose();
+        outputFolder.deleteDirectory();
+    }
+
+    @Benchmark
+    public Array<FileHandle> generate() {
+        final FreeTypePacker.FreeTypeFontParameter parameter = new FreeTypePacker.FreeTypeFontParameter();
+        parameter.fontName = "BenchmarkFont";
+        parameter.size = size;
+        parameter.codePoints = new IntSet();
+        for (int codePoint = 32; codePoint < 127; codePoint++) {
+            parameter.codePoints.add(codePoint);
+        }
+        if (effects) {
+            parameter.borderWidth = 2;
+            parameter.borderColor = Color.BLUE;
+            parameter.shadowColor = Color.GREEN;
+            parameter.shadowOffsetX = 3;
+            parameter.shadowOffsetY = 3;
+        }
+        return packer.generate(parameter, outputFolder);
+    }
+}
@@ -0,0 +1,159 @@
+package com.darkyen.resourcepacker.util.texturepacker;
+
+import com.badlogic.gdx.utils.Array;
+import com.darkyen.resourcepacker.Resource;
+import com.darkyen.resourcepacker.image.Image;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Test of {@link MaxRectsPacker}. Checks that {@link IndexedMaxRects} places rects the same as {@link MaxRectsPacker.MaxRects}
+ * and that packing with {@link MultiScaleTexturePacker.Settings#parallel} gives the same pages as packing serially.
+ */
+public class MaxRectsPackerTest {
+
+    public static void main(String[] args) throws IOException {
+        final File directory = Files.createTempDirectory("MaxRectsPackerTest").toFile();
+        final Resource.ResourceFile imageFile = TexturePackerBenchmark.writeImage(directory, 4);
+        final ForkJoinPool pool = new ForkJoinPool();
+        try {
+            checkIndexedCore(imageFile);
+
+            for (int rects : new int[]{10, 100, 300}) {
+                for (int search = 0; search < 3; search++) {
+                    final MultiScaleTexturePacker.Settings settings = new MultiScaleTexturePacker.Settings();
+                    settings.maxWidth = 2048;
+                    settings.maxHeight = 2048;
+                    settings.pot = search == 0;
+                    settings.square = search == 2;
+
+                    final Array<MultiScaleTexturePacker.Rect> inputRects = createRects(imageFile, settings, rects, rects);
+                    final Array<MultiScaleTexturePacker.Page> serial = new MaxRectsPacker(settings).pack(copyRects(inputRects));
+
+                    final MultiScaleTexturePacker.Settings parallelSettings = new MultiScaleTexturePacker.Settings(settings);
+                    parallelSettings.parallel = true;
+                    final Array<MultiScaleTexturePacker.Page> parallel = pool.invoke(new RecursiveTask<Array<MultiScaleTexturePacker.Page>>() {
+                        @Override
+                        protected Array<MultiScaleTexturePacker.Page> compute() {
+                            return new MaxRectsPacker(parallelSettings).pack(copyRects(inputRects));
+                        }
+                    });
+
+                    final String name = rects + " rects, " + (settings.pot ? "pot" : settings.square ? "square" : "any") + " size";
+                    checkSame(name, serial, parallel);
+                    System.out.println(name + ": " + serial.size + " pages of " + serial.first().width + "x" + serial.first().height);
+                }
+            }
+        } finally {
+            pool.shutdown();
+            TexturePackerBenchmark.deleteImage(imageFile);
+        }
+        System.out.println("MaxRectsPackerTest passed");
+    }
+
+    /**
+     * Places the same rects by {@link MaxRectsPacker.MaxRects} and {@link IndexedMaxRects}, with and without rotation,
+     * by each heuristic, both by {@link MaxRectsPacker.Core#pack} and one by one by {@link MaxRectsPacker.Core#insert},
+     * on a page which is too small for all of them, and checks that the placements are the same.
+     */
+    private static void checkIndexedCore(Resource.ResourceFile imageFile) {
+        int comparisons = 0;
+        for (boolean rotation : new boolean[]{false, true}) {
+            final MultiScaleTexturePacker.Settings settings = new MultiScaleTexturePacker.Settings();
+            settings.rotation = rotation;
+            for (int rects : new int[]{50, 300}) {
+                for (int seed = 0; seed < 3; seed++) {
+                    final Array<MultiScaleTexturePacker.Rect> inputRects = createRects(imageFile, settings, rects, seed);
+                    final int size = rects == 50 ? 256 : 1024;
+                    for (MaxRectsPacker.FreeRectChoiceHeuristic method : MaxRectsPacker.FreeRectChoiceHeuristic.values()) {
+                        for (boolean insert : new boolean[]{false, true}) {
+                            final MaxRectsPacker.Core maxRects = new MaxRectsPacker(settings).new MaxRects();
+                            final MaxRectsPacker.Core indexedMaxRects = new IndexedMaxRects(settings);
+                            final String name = rects + " rects of seed " + seed + (rotation ? " with" : " without") + " rotation, "
+                                    + method + (insert ? " insert" : " pack");
+                            checkSame(name, place(maxRects, method, insert, size, copyRects(inputRects)),
+                                    place(indexedMaxRects, method, insert, size, copyRects(inputRects)));
+                            comparisons++;
+                        }
+                    }
+                }
+            }
+        }
+        System.out.println("IndexedMaxRects placed rects the same as MaxRects in " + comparisons + " comparisons");
+    }
+
+    private static MultiScaleTexturePacker.Page place(MaxRectsPacker.Core core, MaxRectsPacker.FreeRectChoiceHeuristic method, boolean insert,
+                                                      int size, Array<MultiScaleTexturePacker.Rect> rects) {
+        core.init(size, size);
+        if (!insert) {
+            return core.pack(rects, method);
+        }
+        for (MultiScaleTexturePacker.Rect rect : rects) {
+            core.insert(rect, method);
+        }
+        return core.getResult();
+    }
+
+    private static void checkSame(String name, MultiScaleTexturePacker.Page expected, MultiScaleTexturePacker.Page actual) {
+        check(expected.outputRects.size == actual.outputRects.size,
+                name + ": " + expected.outputRects.size + " rects placed by MaxRects, " + actual.outputRects.size + " by IndexedMaxRects");
+        for (int r = 0; r < expected.outputRects.size; r++) {
+            final MultiScaleTexturePacker.Rect expectedRect = expected.outputRects.get(r), actualRect = actual.outputRects.get(r);
+            check(expectedRect.source == actualRect.source
+                            && expectedRect.pageX == actualRect.pageX && expectedRect.pageY == actualRect.pageY
+                            && expectedRect.rotated == actualRect.rotated,
+                    name + ": " + expectedRect.source + " placed differently by IndexedMaxRects");
+        }
+    }
+
+    /** @return rects of random sizes, whose sources are validated, because the packer asks them about ninepatches */
+    private static Array<MultiScaleTexturePacker.Rect> createRects(Resource.ResourceFile imageFile, MultiScaleTexturePacker.Settings settings,
+                                                                   int count, int seed) {
+        final Array<MultiScaleTexturePacker.Rect> result = new Array<>(count);
+        final Random random = new Random(seed);
+        for (int i = 0; i < count; i++) {
+            final ImageSource source = new ImageSource("rect" + i, i);
+            source.addImage(1, new Image.BitmapImage(imageFile));
+            source.validate(settings, settings.scales);
+            result.add(new MultiScaleTexturePacker.Rect(source, 4 + random.nextInt(120), 4 + random.nextInt(120)));
+        }
+        return result;
+    }
+
+    /** @return new copy of the rects, because packing changes them */
+    private static Array<MultiScaleTexturePacker.Rect> copyRects(Array<MultiScaleTexturePacker.Rect> rects) {
+        final Array<MultiScaleTexturePacker.Rect> result = new Array<>(rects.size);
+        for (MultiScaleTexturePacker.Rect rect : rects) {
+            result.add(new MultiScaleTexturePacker.Rect(rect.source, rect.pageWidth, rect.pageHeight));
+        }
+        return result;
+    }
+
+    private static void checkSame(String name, Array<MultiScaleTexturePacker.Page> expected, Array<MultiScaleTexturePacker.Page> actual) {
+        check(expected.size == actual.size, name + ": " + expected.size + " pages packed serially, " + actual.size + " in parallel");
+        for (int p = 0; p < expected.size; p++) {
+            final MultiScaleTexturePacker.Page expectedPage = expected.get(p), actualPage = actual.get(p);
+            final String pageName = name + ", page " + p;
+            check(expectedPage.width == actualPage.width && expectedPage.height == actualPage.height,
+                    pageName + ": " + expectedPage.width + "x" + expectedPage.height + " packed serially, "
+                            + actualPage.width + "x" + actualPage.height + " in parallel");
+            check(expectedPage.outputRects.size == actualPage.outputRects.size, pageName + ": different number of rects");
+            for (int r = 0; r < expectedPage.outputRects.size; r++) {
+                final MultiScaleTexturePacker.Rect expectedRect = expectedPage.outputRects.get(r), actualRect = actualPage.outputRects.get(r);
+                check(expectedRect.source == actualRect.source
+                                && expectedRect.pageX == actualRect.pageX && expectedRect.pageY == actualRect.pageY
+                                && expectedRect.rotated == actualRect.rotated,
+                        pageName + ": " + expectedRect.source + " placed differently in parallel");
+            }
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) throw new AssertionError(message);
+    }
+}
@@ -0,0 +1,144 @@
+package com.darkyen.resourcepacker.util.texturepacker;
+
+import com.badlogic.gdx.math.MathUtils;
+import com.badlogic.gdx.utils.Array;
+import com.darkyen.resourcepacker.Resource;
+import com.darkyen.resourcepacker.image.Image;
+import org.openjdk.jmh.annotations.*;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of {@link MultiScaleTexturePacker.Packer}s and {@link ImageSource}, on synthetic inputs.
+ * Occupancy of pages of each packer is printed after its benchmark, to compare it with the time.
+ *
+ * Run with ./wemi testing:benchmark:run
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TexturePackerBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Rects {
+        @Param({"100", "1000", "10000"})
+        public int rects;
+
+        @Param({"MaxRects", "Skyline", "Guillotine"})
+        public MultiScaleTexturePacker.PackerType packer;
+
+        MultiScaleTexturePacker.Settings settings;
+        final Array<MultiScaleTexturePacker.Rect> inputRects = new Array<>();
+
+        @Setup
+        public void setup() throws IOException {
+            settings = new MultiScaleTexturePacker.Settings();
+            settings.maxWidth = 2048;
+            settings.maxHeight = 2048;
+            settings.packer = packer;
+
+            // Packer needs only sizes of rects, but asks their sources about ninepatches, so they must be validated
+            final File directory = Files.createTempDirectory("TexturePackerBenchmark").toFile();
+            final Resource.ResourceFile imageFile = writeImage(directory, 4);
+            final Random random = new Random(rects);
+            for (int i = 0; i < rects; i++) {
+                final ImageSource source = new ImageSource("rect" + i, i);
+                source.addImage(1, new Image.BitmapImage(imageFile));
+                source.validate(settings, settings.scales);
+                inputRects.add(new MultiScaleTexturePacker.Rect(source, 4 + random.nextInt(60), 4 + random.nextInt(60)));
+            }
+            deleteImage(imageFile);
+        }
+
+        /** Prints how much of the area of written pages is taken by the rects. */
+        @TearDown
+        public void printOccupancy() {
+            long rectArea = 0, pageArea = 0;
+            final Array<MultiScaleTexturePacker.Page> pages = MultiScaleTexturePacker.newPacker(settings).pack(copyRects());
+            for (MultiScaleTexturePacker.Page page : pages) {
+                for (MultiScaleTexturePacker.Rect rect : page.outputRects) {
+                    rectArea += (long) rect.pageWidth * rect.pageHeight;
+                }
+                pageArea += (long) MathUtils.nextPowerOfTwo(page.width) * MathUtils.nextPowerOfTwo(page.height);
+            }
+            System.out.printf("%n%s packed %d rects on %d pages, occupancy %.1f%%%n", packer, rects, pages.size, 100.0 * rectArea / pageArea);
+        }
+
+        /** @return new copy of the input, because packing changes the rects */
+        Array<MultiScaleTexturePacker.Rect> copyRects() {
+            final Array<MultiScaleTexturePacker.Rect> result = new Array<>(inputRects.size);
+            for (MultiScaleTexturePacker.Rect rect : inputRects) {
+                result.add(new MultiScaleTexturePacker.Rect(rect.source, rect.pageWidth, rect.pageHeight));
+            }
+            return result;
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Images {
+        @Param({"32", "256", "1024"})
+        public int size;
+
+        Resource.ResourceFile imageFile;
+
+        @Setup
+        public void setup() throws IOException {
+            imageFile = writeImage(Files.createTempDirectory("TexturePackerBenchmark").toFile(), size);
+        }
+
+        @TearDown
+        public void tearDown() {
+            deleteImage(imageFile);
+        }
+
+        ImageSource validatedSource(int index) {
+            final ImageSource source = new ImageSource("image", index);
+            source.addImage(1, new Image.BitmapImage(imageFile));
+            source.validate(new MultiScaleTexturePacker.Settings(), new int[]{1});
+            return source;
+        }
+    }
+
+    @Benchmark
+    public Array<MultiScaleTexturePacker.Page> pack(Rects rects) {
+        return MultiScaleTexturePacker.newPacker(rects.settings).pack(rects.copyRects());
+    }
+
+    /** Loads and validates two sources and compares them, which computes their hashes. */
+    @Benchmark
+    public boolean imageSourceValidateAndHash(Images images) {
+        return images.validatedSource(0).isIdentical(images.validatedSource(1));
+    }
+
+    /** Writes image with random opaque content, surrounded by transparent border to strip, into the directory. */
+    static Resource.ResourceFile writeImage(File directory, int size) throws IOException {
+        final Random random = new Random(size);
+        final BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+        final int border = size / 8;
+        for (int y = border; y < size - border; y++) {
+            for (int x = border; x < size - border; x++) {
+                image.setRGB(x, y, 0xFF000000 | random.nextInt(0x1000000));
+            }
+        }
+
+        final File file = new File(directory, "image.png");
+        ImageIO.write(image, "png", file);
+        return new Resource.ResourceFile(file, new Resource.ResourceDirectory(directory, null, null));
+    }
+
+    static void deleteImage(Resource.ResourceFile imageFile) {
+        final File file = imageFile.getFile();
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+        //noinspection ResultOfMethodCallIgnored
+        file.getParentFile().delete();
+    }
+}